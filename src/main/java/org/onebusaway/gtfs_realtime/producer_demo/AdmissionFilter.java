@@ -0,0 +1,176 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Admission control for feed endpoints. Each client (remote address) gets
+ * a token bucket refilled at a fixed rate; a client that runs out gets a
+ * 429. Separately, at most a fixed number of requests are served at once;
+ * past that, requests get a 503. Both carry a Retry-After header.
+ *
+ * Served and rejected counts are kept per client. Clients beyond
+ * MAX_CLIENTS share one bucket and one set of counts.
+ */
+public class AdmissionFilter extends Filter {
+
+    private static final int MAX_CLIENTS = 10000;
+
+    private static final String OTHER_CLIENTS = "other";
+
+    /**
+     * Requests per second allowed per client.
+     */
+    private final double _rate;
+
+    /**
+     * Requests a client may make at once after being idle.
+     */
+    private final double _burst;
+
+    private final Semaphore _inFlight;
+
+    private final Map<String, Client> _clients = new ConcurrentHashMap<String, Client>();
+
+    /**
+     * @param rate requests per second per client, or 0 for no per-client limit
+     * @param burst bucket size per client
+     * @param maxConcurrent requests served at once, or 0 for no limit
+     */
+    public AdmissionFilter(double rate, double burst, int maxConcurrent) {
+	_rate = rate;
+	_burst = Math.max(burst, 1.0);
+	_inFlight = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+    }
+
+    @Override
+	public String description() {
+	return "per-client rate limit and concurrent request cap";
+    }
+
+    @Override
+	public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+	Client client = getClient(exchange);
+
+	if (_rate > 0) {
+	    double wait = client.take(_rate, _burst);
+	    if (wait > 0) {
+		client.rejected.incrementAndGet();
+		reject(exchange, 429, (long) Math.ceil(wait));
+		return;
+	    }
+	}
+
+	if (_inFlight != null && !_inFlight.tryAcquire()) {
+	    client.rejected.incrementAndGet();
+	    reject(exchange, 503, 1);
+	    return;
+	}
+	try {
+	    client.served.incrementAndGet();
+	    chain.doFilter(exchange);
+	} finally {
+	    if (_inFlight != null)
+		_inFlight.release();
+	}
+    }
+
+    /**
+     * @return per-client served and rejected counts as a JSON object.
+     */
+    public String getMetricsJson() {
+	StringBuilder json = new StringBuilder("{");
+	boolean first = true;
+	for (Map.Entry<String, Client> entry : _clients.entrySet()) {
+	    if (!first)
+		json.append(',');
+	    first = false;
+	    Client client = entry.getValue();
+	    json.append('"').append(entry.getKey()).append("\":{\"served\":")
+		.append(client.served.get()).append(",\"rejected\":")
+		.append(client.rejected.get()).append('}');
+	}
+	return json.append('}').toString();
+    }
+
+    private Client getClient(HttpExchange exchange) {
+	InetSocketAddress remote = exchange.getRemoteAddress();
+	String key = remote.getAddress() != null
+	    ? remote.getAddress().getHostAddress() : remote.getHostName();
+
+	Client client = _clients.get(key);
+	if (client == null) {
+	    if (_clients.size() >= MAX_CLIENTS)
+		key = OTHER_CLIENTS;
+	    synchronized (_clients) {
+		client = _clients.get(key);
+		if (client == null) {
+		    client = new Client(_burst);
+		    _clients.put(key, client);
+		}
+	    }
+	}
+	return client;
+    }
+
+    static void reject(HttpExchange exchange, int status, long retryAfter)
+	throws IOException {
+	try {
+	    exchange.getResponseHeaders().set("Retry-After", Long.toString(Math.max(retryAfter, 1)));
+	    exchange.sendResponseHeaders(status, -1);
+	} finally {
+	    exchange.close();
+	}
+    }
+
+    private static class Client {
+
+	final AtomicLong served = new AtomicLong();
+
+	final AtomicLong rejected = new AtomicLong();
+
+	private double _tokens;
+
+	private long _lastRefill = System.nanoTime();
+
+	Client(double burst) {
+	    _tokens = burst;
+	}
+
+	/**
+	 * Take a token if one is available.
+	 *
+	 * @return 0 if a token was taken, otherwise seconds until one will be.
+	 */
+	synchronized double take(double rate, double burst) {
+	    long now = System.nanoTime();
+	    _tokens = Math.min(burst, _tokens + (now - _lastRefill) / 1e9 * rate);
+	    _lastRefill = now;
+	    if (_tokens >= 1.0) {
+		_tokens -= 1.0;
+		return 0;
+	    }
+	    return (1.0 - _tokens) / rate;
+	}
+    }
+}
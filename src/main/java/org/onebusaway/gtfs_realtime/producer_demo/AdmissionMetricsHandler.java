@@ -0,0 +1,47 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves an {@link AdmissionFilter}'s per-client served and rejected
+ * counts as JSON.
+ */
+public class AdmissionMetricsHandler implements HttpHandler {
+
+    private final AdmissionFilter _filter;
+
+    public AdmissionMetricsHandler(AdmissionFilter filter) {
+	_filter = filter;
+    }
+
+    @Override
+	public void handle(HttpExchange exchange) throws IOException {
+	try {
+	    byte[] data = _filter.getMetricsJson().getBytes("UTF-8");
+	    exchange.getResponseHeaders().set("Content-Type", "application/json");
+	    exchange.sendResponseHeaders(200, data.length);
+	    OutputStream out = exchange.getResponseBody();
+	    out.write(data);
+	    out.close();
+	} finally {
+	    exchange.close();
+	}
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One serialized version of a feed, shared by every request for it until
+ * the next refresh replaces it. Optionally also holds a gzipped copy for
+ * clients that accept it.
+ */
+public class CachedFeed {
+
+    private final byte[] _data;
+
+    private final byte[] _gzipData;
+
+    private final long _version;
+
+    public CachedFeed(byte[] data, long version) {
+	this(data, null, version);
+    }
+
+    private CachedFeed(byte[] data, byte[] gzipData, long version) {
+	_data = data;
+	_gzipData = gzipData;
+	_version = version;
+    }
+
+    /**
+     * @return a feed holding data and a gzipped copy of it.
+     */
+    public static CachedFeed withGzip(byte[] data, long version) {
+	ByteArrayOutputStream gzipData = new ByteArrayOutputStream(data.length / 4);
+	try {
+	    GZIPOutputStream out = new GZIPOutputStream(gzipData);
+	    out.write(data);
+	    out.close();
+	} catch (IOException ex) {
+	    // Not thrown when writing to memory.
+	    throw new IllegalStateException(ex);
+	}
+	return new CachedFeed(data, gzipData.toByteArray(), version);
+    }
+
+    public byte[] getData() {
+	return _data;
+    }
+
+    /**
+     * @return the gzipped data, or null if there is no gzipped copy.
+     */
+    public byte[] getGzipData() {
+	return _gzipData;
+    }
+
+    public long getVersion() {
+	return _version;
+    }
+
+    /**
+     * @return the HTTP entity tag for this version.
+     */
+    public String getETag() {
+	return "\"" + _version + "\"";
+    }
+
+    /**
+     * @return the HTTP entity tag for the gzipped copy of this version.
+     */
+    public String getGzipETag() {
+	return "\"" + _version + "-gzip\"";
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the current {@link CachedFeed}. Every request costs a buffer
+ * copy; clients that send back the feed's ETag in If-None-Match get a
+ * 304 when it hasn't changed. Clients that accept gzip get the feed's
+ * gzipped copy, if it has one.
+ */
+public class CachedFeedHandler implements HttpHandler {
+
+    public static final String PROTOBUF_CONTENT_TYPE = "application/x-google-protobuf";
+
+    private final String _contentType;
+
+    private volatile CachedFeed _feed;
+
+    public CachedFeedHandler(String contentType) {
+	_contentType = contentType;
+    }
+
+    public void setFeed(CachedFeed feed) {
+	_feed = feed;
+    }
+
+    public CachedFeed getFeed() {
+	return _feed;
+    }
+
+    @Override
+	public void handle(HttpExchange exchange) throws IOException {
+	serve(exchange, _feed, _contentType);
+    }
+
+    /**
+     * Respond to exchange with feed, or a 503 if feed is null.
+     */
+    public static void serve(HttpExchange exchange, CachedFeed feed,
+			     String contentType) throws IOException {
+	try {
+	    String method = exchange.getRequestMethod();
+	    boolean head = "HEAD".equals(method);
+	    if (!head && !"GET".equals(method)) {
+		exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+		exchange.sendResponseHeaders(405, -1);
+		return;
+	    }
+
+	    if (feed == null) {
+		exchange.sendResponseHeaders(503, -1);
+		return;
+	    }
+
+	    boolean gzip = false;
+	    if (feed.getGzipData() != null) {
+		exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		gzip = accept != null && accept.contains("gzip");
+	    }
+
+	    String etag = gzip ? feed.getGzipETag() : feed.getETag();
+	    exchange.getResponseHeaders().set("ETag", etag);
+	    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+		exchange.sendResponseHeaders(304, -1);
+		return;
+	    }
+
+	    byte[] data = gzip ? feed.getGzipData() : feed.getData();
+	    if (gzip)
+		exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+	    exchange.getResponseHeaders().set("Content-Type", contentType);
+	    if (head) {
+		exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+		exchange.sendResponseHeaders(200, -1);
+		return;
+	    }
+	    exchange.sendResponseHeaders(200, data.length);
+	    OutputStream out = exchange.getResponseBody();
+	    out.write(data);
+	    out.close();
+	} finally {
+	    exchange.close();
+	}
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extrapolates vehicle locations forward in time from their last fix,
+ * using the reported speed (m/s) and bearing (degrees clockwise from
+ * north). Extrapolation is capped at a maximum age, past which a vehicle
+ * is held at its last extrapolated position.
+ *
+ * As a {@link LocationListener}, it also measures its own accuracy: each
+ * time a vehicle reports a new fix, the position extrapolated from the
+ * previous fix is compared with the one actually reported.
+ */
+public class DeadReckoner implements LocationListener {
+
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * Longest time to extrapolate past a fix, in ms.
+     */
+    private final long _maxAge;
+
+    private long _errorCount = 0;
+
+    private double _errorSum = 0.0;
+
+    private double _errorMax = 0.0;
+
+    public DeadReckoner(long maxAge) {
+	_maxAge = maxAge;
+    }
+
+    /**
+     * @return loc moved forward to timeNow, or loc itself if it is not
+     *         moving or not older than timeNow.
+     */
+    public Location extrapolate(Location loc, long timeNow) {
+	long age = Math.min(timeNow - loc.getFixTimestamp(), _maxAge);
+	if (age <= 0 || loc.getSpeed() <= 0)
+	    return loc;
+
+	double distance = loc.getSpeed() * age / 1000.0;
+	double bearing = Math.toRadians(loc.getBearing());
+	double lat = Math.toRadians(loc.getLatitude());
+
+	double dLat = distance * Math.cos(bearing) / EARTH_RADIUS;
+	double dLon = distance * Math.sin(bearing) / (EARTH_RADIUS * Math.cos(lat));
+
+	float latitude = (float) (loc.getLatitude() + Math.toDegrees(dLat));
+	float longitude = (float) (loc.getLongitude() + Math.toDegrees(dLon));
+
+	return loc.extrapolatedTo(latitude, longitude, loc.getFixTimestamp() + age);
+    }
+
+    public List<Location> extrapolateAll(List<Location> locs, long timeNow) {
+	ArrayList<Location> result = new ArrayList<Location>(locs.size());
+	for (Location loc : locs) {
+	    result.add(extrapolate(loc, timeNow));
+	}
+	return result;
+    }
+
+    @Override
+	public synchronized void locationAccepted(Location previous, Location loc) {
+	if (previous == null)
+	    return;
+	long age = loc.getTimestamp() - previous.getTimestamp();
+	if (age <= 0 || age > _maxAge)
+	    return;
+
+	Location predicted = extrapolate(previous, loc.getTimestamp());
+	double error = distance(predicted, loc);
+	_errorCount++;
+	_errorSum += error;
+	_errorMax = Math.max(_errorMax, error);
+    }
+
+    @Override
+	public void locationEvicted(Location loc) {
+    }
+
+    /**
+     * @return a summary of extrapolation error against later fixes.
+     */
+    public synchronized String getErrorSummary() {
+	if (_errorCount == 0)
+	    return "no extrapolation error samples";
+	return String.format("extrapolation error over %d fixes: mean %.1f m, max %.1f m",
+			     _errorCount, _errorSum / _errorCount, _errorMax);
+    }
+
+    /**
+     * Great-circle distance between two locations, in meters.
+     */
+    private static double distance(Location a, Location b) {
+	double lat1 = Math.toRadians(a.getLatitude());
+	double lat2 = Math.toRadians(b.getLatitude());
+	double dLat = lat2 - lat1;
+	double dLon = Math.toRadians(b.getLongitude() - a.getLongitude());
+
+	double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+	    + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+	return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeLibrary;
+
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+
+/**
+ * Encodes a list of locations as a serialized GTFS-realtime FeedMessage,
+ * writing the wire format directly instead of building FeedEntity,
+ * VehiclePosition, TripDescriptor, Position and VehicleDescriptor objects
+ * for every vehicle. The output is byte for byte what
+ * {@link LocationList#buildFeedMessage(List)}.toByteArray() produces.
+ *
+ * Large lists are split into chunks that are encoded in parallel. Since
+ * FeedMessage.entity is a repeated field, the encoded chunks can simply be
+ * concatenated after the header.
+ */
+public class FeedEncoder {
+
+    /* FeedMessage */
+    private static final int FEED_HEADER = 1;
+    private static final int FEED_ENTITY = 2;
+
+    /* FeedEntity */
+    private static final int ENTITY_ID = 1;
+    private static final int ENTITY_VEHICLE = 4;
+
+    /* VehiclePosition */
+    private static final int VEHICLE_TRIP = 1;
+    private static final int VEHICLE_POSITION = 2;
+    private static final int VEHICLE_TIMESTAMP = 5;
+    private static final int VEHICLE_VEHICLE = 8;
+
+    /* TripDescriptor */
+    private static final int TRIP_TRIP_ID = 1;
+    private static final int TRIP_ROUTE_ID = 5;
+
+    /* Position */
+    private static final int POSITION_LATITUDE = 1;
+    private static final int POSITION_LONGITUDE = 2;
+    private static final int POSITION_BEARING = 3;
+    private static final int POSITION_SPEED = 5;
+
+    /* VehicleDescriptor */
+    private static final int DESCRIPTOR_ID = 1;
+
+    /**
+     * Four fixed32 fields with one-byte tags.
+     */
+    private static final int POSITION_SIZE = 4 * (1 + 4);
+
+    /**
+     * Entities per chunk when encoding in parallel.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    private final ExecutorService _executor;
+
+    /**
+     * One reusable buffer per chunk.
+     */
+    private final ArrayList<ProtoWriter> _writers = new ArrayList<ProtoWriter>();
+
+    /**
+     * @param threads number of threads to encode chunks on; 1 encodes on
+     *        the calling thread only
+     */
+    public FeedEncoder(int threads) {
+	_executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    public void shutdown() {
+	if (_executor != null)
+	    _executor.shutdownNow();
+    }
+
+    /**
+     * @return locs encoded as a FeedMessage with a fresh header.
+     */
+    public byte[] encode(List<Location> locs) {
+	return encode(locs, GtfsRealtimeLibrary.createFeedMessageBuilder().getHeader());
+    }
+
+    /**
+     * @return locs encoded as a FeedMessage with the given header.
+     */
+    public synchronized byte[] encode(List<Location> locs, FeedHeader feedHeader) {
+	byte[] header = feedHeader.toByteArray();
+
+	int chunks = (locs.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	while (_writers.size() < Math.max(chunks, 1)) {
+	    _writers.add(new ProtoWriter(64 * CHUNK_SIZE));
+	}
+
+	if (_executor == null || chunks <= 1) {
+	    encodeEntities(locs, 0, locs.size(), _writers.get(0));
+	}
+	else {
+	    List<Future<ProtoWriter>> futures = new ArrayList<Future<ProtoWriter>>(chunks);
+	    for (int i = 0; i < chunks; i++) {
+		int from = i * CHUNK_SIZE;
+		int to = Math.min(from + CHUNK_SIZE, locs.size());
+		futures.add(_executor.submit(new ChunkTask(locs, from, to, _writers.get(i))));
+	    }
+	    try {
+		for (Future<ProtoWriter> future : futures) {
+		    future.get();
+		}
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		throw new IllegalStateException("interrupted encoding feed", ex);
+	    } catch (ExecutionException ex) {
+		throw new IllegalStateException("error encoding feed", ex.getCause());
+	    }
+	}
+
+	int entityBytes = 0;
+	for (int i = 0; i < Math.max(chunks, 1); i++) {
+	    entityBytes += _writers.get(i).size();
+	}
+
+	int headerBytes = ProtoWriter.tagSize(FEED_HEADER)
+	    + ProtoWriter.delimitedSize(header.length);
+	byte[] result = new byte[headerBytes + entityBytes];
+
+	ProtoWriter headerWriter = new ProtoWriter(headerBytes);
+	headerWriter.writeTag(FEED_HEADER, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	headerWriter.writeBytes(header);
+	headerWriter.copyTo(result, 0);
+
+	int offset = headerBytes;
+	for (int i = 0; i < Math.max(chunks, 1); i++) {
+	    ProtoWriter writer = _writers.get(i);
+	    writer.copyTo(result, offset);
+	    offset += writer.size();
+	}
+	return result;
+    }
+
+    /**
+     * Write locs[from, to) as FeedMessage.entity fields.
+     */
+    private static void encodeEntities(List<Location> locs, int from, int to,
+				       ProtoWriter out) {
+	out.reset();
+	for (int i = from; i < to; i++) {
+	    Location loc = locs.get(i);
+	    int vehicleSize = vehiclePositionSize(loc);
+
+	    out.writeTag(FEED_ENTITY, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	    out.writeVarint(entitySize(loc, vehicleSize));
+
+	    out.writeTag(ENTITY_ID, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	    out.writeString(loc.getId());
+
+	    out.writeTag(ENTITY_VEHICLE, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	    out.writeVarint(vehicleSize);
+	    writeVehiclePosition(loc, out);
+	}
+    }
+
+    private static void writeVehiclePosition(Location loc, ProtoWriter out) {
+	if (loc.hasTrip()) {
+	    out.writeTag(VEHICLE_TRIP, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	    out.writeVarint(tripSize(loc));
+	    if (loc.getTripId() != null) {
+		out.writeTag(TRIP_TRIP_ID, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+		out.writeString(loc.getTripId());
+	    }
+	    if (loc.getRouteId() != null) {
+		out.writeTag(TRIP_ROUTE_ID, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+		out.writeString(loc.getRouteId());
+	    }
+	}
+
+	out.writeTag(VEHICLE_POSITION, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	out.writeVarint(POSITION_SIZE);
+	out.writeTag(POSITION_LATITUDE, ProtoWriter.WIRETYPE_FIXED32);
+	out.writeFloat(loc.getLatitude());
+	out.writeTag(POSITION_LONGITUDE, ProtoWriter.WIRETYPE_FIXED32);
+	out.writeFloat(loc.getLongitude());
+	out.writeTag(POSITION_BEARING, ProtoWriter.WIRETYPE_FIXED32);
+	out.writeFloat(loc.getBearing());
+	out.writeTag(POSITION_SPEED, ProtoWriter.WIRETYPE_FIXED32);
+	out.writeFloat(loc.getSpeed());
+
+	out.writeTag(VEHICLE_TIMESTAMP, ProtoWriter.WIRETYPE_VARINT);
+	out.writeVarint(loc.getTimestamp());
+
+	out.writeTag(VEHICLE_VEHICLE, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	out.writeVarint(descriptorSize(loc));
+	out.writeTag(DESCRIPTOR_ID, ProtoWriter.WIRETYPE_LENGTH_DELIMITED);
+	out.writeString(loc.getId());
+
+	// Unknown fields are serialized after all known fields.
+	if (loc.isExtrapolated()) {
+	    out.writeTag(Location.EXTRAPOLATED_FROM_FIELD, ProtoWriter.WIRETYPE_VARINT);
+	    out.writeVarint(loc.getFixTimestamp());
+	}
+    }
+
+    private static int entitySize(Location loc, int vehicleSize) {
+	return ProtoWriter.tagSize(ENTITY_ID)
+	    + ProtoWriter.delimitedSize(ProtoWriter.utf8Length(loc.getId()))
+	    + ProtoWriter.tagSize(ENTITY_VEHICLE)
+	    + ProtoWriter.delimitedSize(vehicleSize);
+    }
+
+    private static int vehiclePositionSize(Location loc) {
+	int size = ProtoWriter.tagSize(VEHICLE_POSITION)
+	    + ProtoWriter.delimitedSize(POSITION_SIZE)
+	    + ProtoWriter.tagSize(VEHICLE_TIMESTAMP)
+	    + ProtoWriter.varintSize(loc.getTimestamp())
+	    + ProtoWriter.tagSize(VEHICLE_VEHICLE)
+	    + ProtoWriter.delimitedSize(descriptorSize(loc));
+	if (loc.hasTrip()) {
+	    size += ProtoWriter.tagSize(VEHICLE_TRIP)
+		+ ProtoWriter.delimitedSize(tripSize(loc));
+	}
+	if (loc.isExtrapolated()) {
+	    size += ProtoWriter.tagSize(Location.EXTRAPOLATED_FROM_FIELD)
+		+ ProtoWriter.varintSize(loc.getFixTimestamp());
+	}
+	return size;
+    }
+
+    private static int tripSize(Location loc) {
+	int size = 0;
+	if (loc.getTripId() != null) {
+	    size += ProtoWriter.tagSize(TRIP_TRIP_ID)
+		+ ProtoWriter.delimitedSize(ProtoWriter.utf8Length(loc.getTripId()));
+	}
+	if (loc.getRouteId() != null) {
+	    size += ProtoWriter.tagSize(TRIP_ROUTE_ID)
+		+ ProtoWriter.delimitedSize(ProtoWriter.utf8Length(loc.getRouteId()));
+	}
+	return size;
+    }
+
+    private static int descriptorSize(Location loc) {
+	return ProtoWriter.tagSize(DESCRIPTOR_ID)
+	    + ProtoWriter.delimitedSize(ProtoWriter.utf8Length(loc.getId()));
+    }
+
+    private static class ChunkTask implements Callable<ProtoWriter> {
+
+	private final List<Location> _locs;
+	private final int _from;
+	private final int _to;
+	private final ProtoWriter _out;
+
+	public ChunkTask(List<Location> locs, int from, int to, ProtoWriter out) {
+	    _locs = locs;
+	    _from = from;
+	    _to = to;
+	    _out = out;
+	}
+
+	@Override
+	    public ProtoWriter call() {
+	    encodeEntities(_locs, _from, _to, _out);
+	    return _out;
+	}
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Compares render time and size of the vehicle positions feed as JSON,
+ * as protobuf text format (what ?debug serves), and as protobuf, for the
+ * same snapshot of synthetic locations.
+ *
+ * Usage: FeedFormatBenchmark [vehicles] [iterations]
+ */
+public class FeedFormatBenchmark {
+
+    public static void main(String[] args) throws UnsupportedEncodingException {
+	int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+	int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+	List<Location> locs = locations(vehicles);
+
+	final JsonFeedWriter jsonWriter = new JsonFeedWriter();
+	final FeedEncoder encoder = new FeedEncoder(1);
+	final FeedMessage message = LocationList.buildFeedMessage(locs);
+
+	System.out.println(vehicles + " vehicles, mean of " + iterations + " runs");
+	System.out.println(String.format("%-10s %12s %12s %12s %12s",
+					 "format", "render us", "bytes", "gzip us", "gzip bytes"));
+
+	byte[] json = null;
+	byte[] text = null;
+	byte[] proto = null;
+	long[] times = new long[3];
+	// The first pass warms up the JIT and is not counted.
+	for (int pass = 0; pass < 2; pass++) {
+	    times = new long[3];
+	    for (int i = 0; i < iterations; i++) {
+		long start = System.nanoTime();
+		json = jsonWriter.render(locs);
+		times[0] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		text = message.toString().getBytes("UTF-8");
+		times[1] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		proto = encoder.encode(locs);
+		times[2] += System.nanoTime() - start;
+	    }
+	}
+	encoder.shutdown();
+
+	report("json", json, times[0], iterations);
+	report("text", text, times[1], iterations);
+	report("protobuf", proto, times[2], iterations);
+    }
+
+    private static void report(String format, byte[] data, long nanos, int iterations) {
+	long start = System.nanoTime();
+	byte[] gzipped = null;
+	for (int i = 0; i < iterations; i++) {
+	    gzipped = CachedFeed.withGzip(data, 0).getGzipData();
+	}
+	long gzipNanos = System.nanoTime() - start;
+	System.out.println(String.format("%-10s %12d %12d %12d %12d", format,
+					 nanos / iterations / 1000, data.length,
+					 gzipNanos / iterations / 1000, gzipped.length));
+    }
+
+    /**
+     * @return vehicles synthetic locations around Boston, a third with
+     *         trips and a tenth extrapolated.
+     */
+    private static List<Location> locations(int vehicles) {
+	Random random = new Random(0);
+	long now = System.currentTimeMillis();
+	List<Location> locs = new ArrayList<Location>(vehicles);
+	for (int i = 0; i < vehicles; i++) {
+	    BasicDBObject position = new BasicDBObject("latitude", 42.36 + random.nextGaussian() * 0.05)
+		.append("longitude", -71.06 + random.nextGaussian() * 0.05)
+		.append("bearing", random.nextInt(360))
+		.append("speed", random.nextFloat() * 15);
+	    BasicDBObject vehicle = new BasicDBObject("position", position)
+		.append("timestamp", now - random.nextInt(60000));
+	    if (i % 3 == 0) {
+		vehicle.append("trip", new BasicDBObject("trip_id", "trip-" + i)
+			       .append("route_id", Integer.toString(i % 120)));
+	    }
+	    BasicDBObject entity = new BasicDBObject("id", Integer.toString(1000 + i))
+		.append("vehicle", vehicle);
+	    Location loc = new Location(new BasicDBObject("entity", entity));
+	    if (i % 10 == 0)
+		loc = loc.extrapolatedTo(loc.getLatitude(), loc.getLongitude(), now);
+	    locs.add(loc);
+	}
+	return locs;
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Hosts this producer's own HTTP endpoints, alongside the servlets of the
+ * GTFS-realtime exporter. Handlers are registered by URL; one server is
+ * started per distinct port.
+ *
+ * Feed handlers pass through an optional {@link AdmissionFilter}. Requests
+ * can be limited to a fixed number of serving threads, leaving the rest of
+ * the machine's CPUs to the refresh pipeline. Requests that arrive when
+ * every thread is busy and the serving queue is full get a 503 straight
+ * from the dispatcher thread, rather than waiting for a thread.
+ */
+@Singleton
+public class FeedHttpServer {
+
+    private static final Logger _log = LoggerFactory.getLogger(FeedHttpServer.class);
+
+    /**
+     * Set on the dispatcher thread while it runs a request the serving
+     * threads had no room for.
+     */
+    private static final ThreadLocal<Boolean> _overloaded = new ThreadLocal<Boolean>();
+
+    private final Map<Integer, HttpServer> _servers = new HashMap<Integer, HttpServer>();
+
+    private ExecutorService _executor;
+
+    /**
+     * Threads serving requests, or 0 for as many as needed.
+     */
+    private int _servingThreads = 0;
+
+    /**
+     * Requests waiting for a serving thread, beyond which requests are
+     * rejected. Only applies with a fixed number of serving threads.
+     */
+    private int _servingQueue = 0;
+
+    private AdmissionFilter _admissionFilter;
+
+    private boolean _started = false;
+
+    /**
+     * Serve requests on at most threads threads. Must be set before any
+     * handler is added.
+     */
+    public synchronized void setServingThreads(int threads) {
+	_servingThreads = threads;
+    }
+
+    /**
+     * Let at most queue requests wait for a serving thread; more get a
+     * 503. Must be set before any handler is added.
+     */
+    public synchronized void setServingQueue(int queue) {
+	_servingQueue = queue;
+    }
+
+    /**
+     * Apply filter to every feed handler added after this.
+     */
+    public synchronized void setAdmissionFilter(AdmissionFilter filter) {
+	_admissionFilter = filter;
+    }
+
+    /**
+     * Serve a feed under url's path with handler, subject to admission
+     * control.
+     */
+    public synchronized HttpContext addFeedHandler(URL url, HttpHandler handler) throws IOException {
+	HttpContext context = addHandler(url, handler);
+	if (_admissionFilter != null)
+	    context.getFilters().add(_admissionFilter);
+	return context;
+    }
+
+    /**
+     * Serve requests under url's path with handler. May be called before
+     * or after the server is started.
+     */
+    public synchronized HttpContext addHandler(URL url, HttpHandler handler) throws IOException {
+	int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+	HttpServer server = _servers.get(port);
+	if (server == null) {
+	    server = HttpServer.create(new InetSocketAddress(port), 0);
+	    server.setExecutor(getExecutor());
+	    _servers.put(port, server);
+	    if (_started)
+		server.start();
+	}
+
+	String path = url.getPath();
+	if (path.length() == 0)
+	    path = "/";
+	HttpContext context = server.createContext(path, handler);
+	// First, so nothing else runs for a rejected request.
+	if (_servingThreads > 0)
+	    context.getFilters().add(new OverloadFilter());
+	_log.info("serving " + url);
+	return context;
+    }
+
+    @PostConstruct
+	public synchronized void start() {
+	for (HttpServer server : _servers.values()) {
+	    server.start();
+	}
+	_started = true;
+    }
+
+    @PreDestroy
+	public synchronized void stop() {
+	for (HttpServer server : _servers.values()) {
+	    server.stop(0);
+	}
+	if (_executor != null)
+	    _executor.shutdownNow();
+	_started = false;
+    }
+
+    private ExecutorService getExecutor() {
+	if (_executor == null) {
+	    if (_servingThreads > 0) {
+		BlockingQueue<Runnable> queue = _servingQueue > 0
+		    ? new ArrayBlockingQueue<Runnable>(_servingQueue)
+		    : new SynchronousQueue<Runnable>();
+		_executor = new ThreadPoolExecutor(_servingThreads, _servingThreads,
+						   0L, TimeUnit.MILLISECONDS, queue,
+						   new OverloadHandler());
+	    }
+	    else
+		_executor = Executors.newCachedThreadPool();
+	}
+	return _executor;
+    }
+
+    /**
+     * The executor only sees the server's own request task, not the
+     * exchange, so a rejected request is run on the dispatcher thread
+     * marked as overloaded, for {@link OverloadFilter} to answer.
+     */
+    private static class OverloadHandler implements RejectedExecutionHandler {
+
+	@Override
+	    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+	    if (executor.isShutdown())
+		return;
+	    _overloaded.set(Boolean.TRUE);
+	    try {
+		task.run();
+	    } finally {
+		_overloaded.remove();
+	    }
+	}
+    }
+
+    private static class OverloadFilter extends Filter {
+
+	@Override
+	    public String description() {
+	    return "reject requests with no serving thread or queue slot";
+	}
+
+	@Override
+	    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+	    if (_overloaded.get() != null) {
+		AdmissionFilter.reject(exchange, 503, 1);
+		return;
+	    }
+	    chain.doFilter(exchange);
+	}
+    }
+}
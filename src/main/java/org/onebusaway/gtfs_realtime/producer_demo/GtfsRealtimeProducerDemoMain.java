@@ -42,11 +42,48 @@ public class GtfsRealtimeProducerDemoMain {
 
     private static final String ARG_LOCATIONS_URL = "locationsUrl";
 
+    private static final String ARG_ENCODED_LOCATIONS_URL = "encodedLocationsUrl";
+
+    private static final String ARG_ENCODER_THREADS = "encoderThreads";
+
+    private static final String ARG_JSON_LOCATIONS_URL = "jsonLocationsUrl";
+
     private static final String ARG_MONGO_CLIENT = "mongoClient";
     private static final String ARG_DATABASE_NAME = "dbName";
     private static final String ARG_COLLECTION_NAME = "collectionName";
 
     private static final String ARG_AGELIM = "ageLim";
+
+    private static final String ARG_ARCHIVE_PATH = "archivePath";
+    private static final String ARG_ARCHIVE_SEGMENT_RECORDS = "archiveSegmentRecords";
+    private static final String ARG_REPLAY_SPEED = "replaySpeed";
+    private static final String ARG_REPLAY_FROM = "replayFrom";
+    private static final String ARG_REPLAY_TO = "replayTo";
+
+    private static final String ARG_EXTRAPOLATE_MAX_AGE = "extrapolateMaxAge";
+    private static final String ARG_EXTRAPOLATE_INTERVAL = "extrapolateInterval";
+
+    private static final String ARG_INGEST_URL = "ingestUrl";
+    private static final String ARG_INGEST_PORT = "ingestPort";
+    private static final String ARG_INGEST_BUFFER = "ingestBuffer";
+    private static final String ARG_INGEST_BATCH = "ingestBatch";
+    private static final String ARG_INGEST_PUBLISH_DELAY = "ingestPublishDelay";
+
+    private static final String ARG_CLIENT_RATE = "clientRate";
+    private static final String ARG_CLIENT_BURST = "clientBurst";
+    private static final String ARG_MAX_CONCURRENT_REQUESTS = "maxConcurrentRequests";
+    private static final String ARG_RESERVED_REFRESH_CPUS = "reservedRefreshCpus";
+    private static final String ARG_METRICS_URL = "metricsUrl";
+
+    private static final String ARG_PARTITION_KEY = "partitionKey";
+    private static final String ARG_PARTITIONS_URL = "partitionsUrl";
+
+    private static final String ARG_HISTORY_DEPTH = "historyDepth";
+    private static final String ARG_HISTORY_URL = "historyUrl";
+
+    private static final String ARG_FETCH_PARTITIONS = "fetchPartitions";
+
+    private static final int DEFAULT_ARCHIVE_SEGMENT_RECORDS = 1 << 16;
     
     public static void main(String[] args) throws Exception {
 	GtfsRealtimeProducerDemoMain m = new GtfsRealtimeProducerDemoMain();
@@ -85,12 +122,30 @@ public class GtfsRealtimeProducerDemoMain {
 	Injector injector = Guice.createInjector(modules);
 	injector.injectMembers(this);
 
-	if (cli.hasOption(ARG_MONGO_CLIENT) && 
-	    cli.hasOption(ARG_DATABASE_NAME) &&
-	    cli.hasOption(ARG_COLLECTION_NAME)) {
+	if (cli.hasOption(ARG_REPLAY_SPEED)) {
+	    if (!cli.hasOption(ARG_ARCHIVE_PATH))
+		throw new IllegalArgumentException("Need archive path to replay.");
+	    File dir = new File(cli.getOptionValue(ARG_ARCHIVE_PATH));
+	    long from = Long.parseLong(cli.getOptionValue(ARG_REPLAY_FROM, "0"));
+	    long to = Long.parseLong(cli.getOptionValue(ARG_REPLAY_TO,
+							 Long.toString(Long.MAX_VALUE)));
+	    double speed = Double.parseDouble(cli.getOptionValue(ARG_REPLAY_SPEED));
+	    _provider.setReplay(dir, from, to, speed);
+	}
+	else if (cli.hasOption(ARG_MONGO_CLIENT) && 
+		 cli.hasOption(ARG_DATABASE_NAME) &&
+		 cli.hasOption(ARG_COLLECTION_NAME)) {
 	    _provider.setMongo(cli.getOptionValue(ARG_MONGO_CLIENT));
 	    _provider.setDB(cli.getOptionValue(ARG_DATABASE_NAME));
 	    _provider.setColl(cli.getOptionValue(ARG_COLLECTION_NAME));
+
+	    if (cli.hasOption(ARG_ARCHIVE_PATH)) {
+		File dir = new File(cli.getOptionValue(ARG_ARCHIVE_PATH));
+		int segmentRecords = DEFAULT_ARCHIVE_SEGMENT_RECORDS;
+		if (cli.hasOption(ARG_ARCHIVE_SEGMENT_RECORDS))
+		    segmentRecords = Integer.parseInt(cli.getOptionValue(ARG_ARCHIVE_SEGMENT_RECORDS));
+		_provider.setArchive(dir, segmentRecords);
+	    }
 	}
 	else
 	    throw new IllegalArgumentException("Need MongoClient URI, database name, collection name.");
@@ -99,10 +154,113 @@ public class GtfsRealtimeProducerDemoMain {
 	    _provider.setAgeLim(cli.getOptionValue(ARG_AGELIM));
 	}
 
+	if (cli.hasOption(ARG_FETCH_PARTITIONS)) {
+	    _provider.setFetchPartitions(Integer.parseInt(cli.getOptionValue(ARG_FETCH_PARTITIONS)));
+	}
+
+	if (cli.hasOption(ARG_PARTITION_KEY)) {
+	    _provider.setPartitions(cli.getOptionValue(ARG_PARTITION_KEY));
+	}
+
+	if (cli.hasOption(ARG_HISTORY_DEPTH)) {
+	    _provider.setHistoryDepth(Integer.parseInt(cli.getOptionValue(ARG_HISTORY_DEPTH)));
+	}
+
+	if (cli.hasOption(ARG_EXTRAPOLATE_MAX_AGE)) {
+	    long maxAge = Long.parseLong(cli.getOptionValue(ARG_EXTRAPOLATE_MAX_AGE));
+	    long interval = Long.parseLong(cli.getOptionValue(ARG_EXTRAPOLATE_INTERVAL, "1000"));
+	    _provider.setExtrapolation(maxAge, interval);
+	}
+
+	FeedHttpServer server = injector.getInstance(FeedHttpServer.class);
+
+	/**
+	 * With admission control, the locations feed is served by our own
+	 * server rather than the exporter's servlet, so it can be limited.
+	 */
+	boolean admission = cli.hasOption(ARG_CLIENT_RATE)
+	    || cli.hasOption(ARG_MAX_CONCURRENT_REQUESTS);
+	if (cli.hasOption(ARG_RESERVED_REFRESH_CPUS)) {
+	    int reserved = Integer.parseInt(cli.getOptionValue(ARG_RESERVED_REFRESH_CPUS));
+	    int cpus = Runtime.getRuntime().availableProcessors();
+	    int threads = Math.max(1, cpus - reserved);
+	    server.setServingThreads(threads);
+	    /**
+	     * Requests waiting for a thread count towards the concurrent
+	     * request cap, so the cap holds however many threads there are.
+	     * Without a cap, let one request wait per thread.
+	     */
+	    int maxConcurrent = Integer.parseInt(cli.getOptionValue(ARG_MAX_CONCURRENT_REQUESTS, "0"));
+	    server.setServingQueue(maxConcurrent > 0 ? Math.max(0, maxConcurrent - threads) : threads);
+	}
+	if (admission) {
+	    double rate = Double.parseDouble(cli.getOptionValue(ARG_CLIENT_RATE, "0"));
+	    double burst = Double.parseDouble(cli.getOptionValue(ARG_CLIENT_BURST,
+								 Double.toString(Math.max(rate, 1))));
+	    int maxConcurrent = Integer.parseInt(cli.getOptionValue(ARG_MAX_CONCURRENT_REQUESTS, "0"));
+	    AdmissionFilter filter = new AdmissionFilter(rate, burst, maxConcurrent);
+	    server.setAdmissionFilter(filter);
+	    if (cli.hasOption(ARG_METRICS_URL)) {
+		URL url = new URL(cli.getOptionValue(ARG_METRICS_URL));
+		server.addHandler(url, new AdmissionMetricsHandler(filter));
+	    }
+	}
+
+	if (cli.hasOption(ARG_ENCODED_LOCATIONS_URL)
+	    || (admission && cli.hasOption(ARG_LOCATIONS_URL))) {
+	    int threads = Runtime.getRuntime().availableProcessors();
+	    if (cli.hasOption(ARG_ENCODER_THREADS))
+		threads = Integer.parseInt(cli.getOptionValue(ARG_ENCODER_THREADS));
+	    _provider.setFeedEncoder(new FeedEncoder(threads));
+	}
+	if (cli.hasOption(ARG_ENCODED_LOCATIONS_URL)) {
+	    URL url = new URL(cli.getOptionValue(ARG_ENCODED_LOCATIONS_URL));
+	    server.addFeedHandler(url, _provider.getEncodedLocationsHandler());
+	}
+
+	if (cli.hasOption(ARG_JSON_LOCATIONS_URL)) {
+	    URL url = new URL(cli.getOptionValue(ARG_JSON_LOCATIONS_URL));
+	    _provider.setJsonFeed();
+	    server.addFeedHandler(url, _provider.getJsonLocationsHandler());
+	}
+
+	if (cli.hasOption(ARG_PARTITIONS_URL)) {
+	    if (!cli.hasOption(ARG_PARTITION_KEY))
+		throw new IllegalArgumentException("Need partition key to serve partitions.");
+	    URL url = new URL(cli.getOptionValue(ARG_PARTITIONS_URL));
+	    server.addFeedHandler(url, new PartitionFeedHandler(_provider.getPartitions(),
+							       CachedFeedHandler.PROTOBUF_CONTENT_TYPE));
+	}
+
+	if (cli.hasOption(ARG_HISTORY_URL)) {
+	    if (!cli.hasOption(ARG_HISTORY_DEPTH))
+		throw new IllegalArgumentException("Need history depth to serve history.");
+	    URL url = new URL(cli.getOptionValue(ARG_HISTORY_URL));
+	    server.addFeedHandler(url, new VehicleHistoryHandler(_provider.getHistory()));
+	}
+
+	if (cli.hasOption(ARG_INGEST_URL) || cli.hasOption(ARG_INGEST_PORT)) {
+	    int bufferSize = Integer.parseInt(cli.getOptionValue(ARG_INGEST_BUFFER, "100000"));
+	    int batchSize = Integer.parseInt(cli.getOptionValue(ARG_INGEST_BATCH, "1000"));
+	    long publishDelay = Long.parseLong(cli.getOptionValue(ARG_INGEST_PUBLISH_DELAY, "200"));
+	    _provider.setIngest(bufferSize, batchSize, publishDelay);
+	    if (cli.hasOption(ARG_INGEST_URL)) {
+		URL url = new URL(cli.getOptionValue(ARG_INGEST_URL));
+		server.addHandler(url, new LocationIngestHandler(_provider.getIngester()));
+	    }
+	    if (cli.hasOption(ARG_INGEST_PORT))
+		_provider.setIngestPort(Integer.parseInt(cli.getOptionValue(ARG_INGEST_PORT)));
+	}
+
 	if (cli.hasOption(ARG_LOCATIONS_URL)) {
 	    URL url = new URL(cli.getOptionValue(ARG_LOCATIONS_URL));
-	    VehiclePositionsServlet servlet = injector.getInstance(VehiclePositionsServlet.class);
-	    servlet.setUrl(url);
+	    if (admission) {
+		server.addFeedHandler(url, _provider.getLocationsHandler());
+	    }
+	    else {
+		VehiclePositionsServlet servlet = injector.getInstance(VehiclePositionsServlet.class);
+		servlet.setUrl(url);
+	    }
 	}
 	if (cli.hasOption(ARG_LOCATIONS_PATH)) {
 	    File path = new File(cli.getOptionValue(ARG_LOCATIONS_PATH));
@@ -120,9 +278,34 @@ public class GtfsRealtimeProducerDemoMain {
     protected void buildOptions(Options options) {
 	options.addOption(ARG_LOCATIONS_PATH, true, "locations path");
 	options.addOption(ARG_LOCATIONS_URL, true, "locations url");
+	options.addOption(ARG_ENCODED_LOCATIONS_URL, true, "pre-encoded locations url");
+	options.addOption(ARG_ENCODER_THREADS, true, "threads for encoding large feeds");
+	options.addOption(ARG_INGEST_URL, true, "location ingest url");
+	options.addOption(ARG_INGEST_PORT, true, "location ingest UDP port");
+	options.addOption(ARG_INGEST_BUFFER, true, "ingested locations buffered for MongoDB");
+	options.addOption(ARG_INGEST_BATCH, true, "ingested locations per MongoDB insert");
+	options.addOption(ARG_INGEST_PUBLISH_DELAY, true, "delay before republishing ingested locations, in ms");
+	options.addOption(ARG_CLIENT_RATE, true, "feed requests per second allowed per client");
+	options.addOption(ARG_CLIENT_BURST, true, "feed requests a client may burst");
+	options.addOption(ARG_MAX_CONCURRENT_REQUESTS, true, "feed requests served at once");
+	options.addOption(ARG_RESERVED_REFRESH_CPUS, true, "CPUs kept free of request serving");
+	options.addOption(ARG_METRICS_URL, true, "admission metrics url");
+	options.addOption(ARG_PARTITION_KEY, true, "document path to partition vehicles by");
+	options.addOption(ARG_PARTITIONS_URL, true, "partition feeds url");
+	options.addOption(ARG_HISTORY_DEPTH, true, "recent locations kept per vehicle");
+	options.addOption(ARG_HISTORY_URL, true, "vehicle history url");
+	options.addOption(ARG_FETCH_PARTITIONS, true, "vehicle ID ranges downloaded concurrently");
+	options.addOption(ARG_JSON_LOCATIONS_URL, true, "JSON locations url");
 	options.addOption(ARG_MONGO_CLIENT, true, "MongoDB URI");
 	options.addOption(ARG_DATABASE_NAME, true, "database name");
 	options.addOption(ARG_COLLECTION_NAME, true, "collection name");
 	options.addOption(ARG_AGELIM, true, "age limit for removal, in ms");
+	options.addOption(ARG_ARCHIVE_PATH, true, "location archive directory");
+	options.addOption(ARG_ARCHIVE_SEGMENT_RECORDS, true, "records per archive segment file");
+	options.addOption(ARG_REPLAY_SPEED, true, "replay archive at this multiple of real time");
+	options.addOption(ARG_REPLAY_FROM, true, "replay start timestamp, in ms");
+	options.addOption(ARG_REPLAY_TO, true, "replay end timestamp, in ms");
+	options.addOption(ARG_EXTRAPOLATE_MAX_AGE, true, "extrapolate positions up to this age, in ms");
+	options.addOption(ARG_EXTRAPOLATE_INTERVAL, true, "extrapolated feed rebuild interval, in ms");
     }
 }
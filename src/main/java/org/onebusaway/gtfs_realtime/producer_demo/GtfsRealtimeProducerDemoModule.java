@@ -36,6 +36,7 @@ public class GtfsRealtimeProducerDemoModule extends AbstractModule {
   protected void configure() {
     bind(GtfsRealtimeProviderImpl.class);
     bind(GtfsRealtimeProvider.class).to(GtfsRealtimeProviderImpl.class);
+    bind(FeedHttpServer.class);
   }
 
   /**
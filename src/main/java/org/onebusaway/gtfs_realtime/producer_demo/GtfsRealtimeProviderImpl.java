@@ -17,15 +17,28 @@ package org.onebusaway.gtfs_realtime.producer_demo;
 
 import java.lang.Object;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.SocketException;
 import java.net.URL;
 import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
 import java.rmi.UnknownHostException;
 import java.lang.IllegalArgumentException;
 
@@ -42,10 +55,15 @@ import org.json.JSONTokener;
 import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeExporterModule;
 import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeProvider;
 import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeLibrary;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime.EntitySelector;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
@@ -53,6 +71,7 @@ import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.Position;
 
 
+import com.mongodb.AggregationOutput;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoException;
@@ -89,6 +108,13 @@ import com.mongodb.ServerAddress;
 public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 
     private static final Logger _log = LoggerFactory.getLogger(GtfsRealtimeProviderImpl.class);
+
+    /**
+     * Index serving partitioned downloads: vehicle ID ranges, newest
+     * location first within each vehicle.
+     */
+    private static final DBObject FETCH_INDEX =
+	new BasicDBObject("entity.id", 1).append("entity.vehicle.timestamp", -1);
     
     private ScheduledExecutorService _executor;
     
@@ -96,6 +122,12 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 
     private URL _url;
 
+    /**
+     * Latest timestamp polled from MongoDB; each refresh queries for
+     * newer locations. Pushed locations do not advance it, since their
+     * clocks say nothing about what has been written to MongoDB, so the
+     * polling queries skip documents written by the ingester.
+     */
     private long _currtime = 1365614681000L;
 
     /**
@@ -120,6 +152,112 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 
     private LocationList locationList = new LocationList();
 
+    /**
+     * Optional archive of every accepted location.
+     */
+    private LocationArchive _archive;
+
+    /**
+     * When set, locations come from an archive replay instead of MongoDB.
+     */
+    private LocationReplayer _replayer;
+
+    private Thread _replayThread;
+
+    /**
+     * When set, served positions are extrapolated forward from each
+     * vehicle's last fix on a fast tick between refreshes.
+     */
+    private DeadReckoner _deadReckoner;
+
+    /**
+     * How often extrapolated positions are rebuilt, in ms.
+     */
+    private long _extrapolateInterval = 1000;
+
+    /**
+     * Runs extrapolation ticks and republishes after ingest, so they are
+     * not held up by a refresh downloading from MongoDB.
+     */
+    private ScheduledExecutorService _publishExecutor;
+
+    /**
+     * When set, the locations feed is encoded straight to bytes, and
+     * _locs is only parsed from them if the exporter asks for it.
+     */
+    private FeedEncoder _feedEncoder;
+
+    private final CachedFeedHandler _encodedLocationsHandler =
+	new CachedFeedHandler(CachedFeedHandler.PROTOBUF_CONTENT_TYPE);
+
+    private final AtomicLong _feedVersion = new AtomicLong();
+
+    /**
+     * When set, the locations feed is also rendered as JSON each refresh.
+     */
+    private JsonFeedWriter _jsonWriter;
+
+    private final CachedFeedHandler _jsonLocationsHandler =
+	new CachedFeedHandler("application/json");
+
+    /**
+     * Size and render time of the last JSON feed, for logging.
+     */
+    private volatile String _jsonStats;
+
+    private final Object _locsLock = new Object();
+
+    /**
+     * Held from taking a snapshot of the locations until every feed built
+     * from it is set, so that refreshes and extrapolation ticks publish
+     * whole snapshots in version order.
+     */
+    private final Object _publishLock = new Object();
+
+    /**
+     * When set, locations pushed to the ingest endpoints are applied
+     * directly and written behind to _coll.
+     */
+    private LocationIngester _ingester;
+
+    private LocationDatagramListener _datagramListener;
+
+    /**
+     * How long after a pushed location is accepted the feed is
+     * republished, in ms. Locations accepted in the meantime are
+     * published together.
+     */
+    private long _ingestPublishDelay = 200;
+
+    private final AtomicBoolean _ingestPublishScheduled = new AtomicBoolean();
+
+    /**
+     * Dotted path of the document field that vehicles are partitioned by,
+     * or null if the feed is not partitioned.
+     */
+    private String _groupKeyPath;
+
+    private LocationPartitions _partitions;
+
+    /**
+     * Encodes partition feeds when the full feed has no encoder.
+     */
+    private FeedEncoder _partitionEncoder;
+
+    /**
+     * Optional recent history of each vehicle.
+     */
+    private VehicleHistory _history;
+
+    /**
+     * Number of vehicle ID ranges downloaded concurrently each refresh.
+     */
+    private int _fetchPartitions = 1;
+
+    private ExecutorService _fetchExecutor;
+
+    private long _lastWritten = 0;
+
     /**
      * @param url is a string pointing to our MongoDB (w/ authentication)
      */
@@ -141,6 +279,133 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 	_ageLim = Integer.parseInt(ageLim);
     }
 
+    /**
+     * @param dir directory to append accepted locations to
+     * @param segmentRecords number of records per archive segment file
+     */
+    public void setArchive(File dir, int segmentRecords) throws IOException {
+	_archive = new LocationArchive(dir, segmentRecords);
+    }
+
+    /**
+     * Replay archived locations with timestamps in [from, to] at speed
+     * times real time, in place of polling MongoDB.
+     */
+    public void setReplay(File dir, long from, long to, double speed) {
+	_replayer = new LocationReplayer(dir, from, to, speed, locationList);
+    }
+
+    /**
+     * Serve positions extrapolated from each vehicle's last fix, by at
+     * most maxAge ms, rebuilt every interval ms.
+     */
+    public void setExtrapolation(long maxAge, long interval) {
+	_deadReckoner = new DeadReckoner(maxAge);
+	_extrapolateInterval = interval;
+    }
+
+
+    /**
+     * Encode the locations feed with encoder instead of building a
+     * FeedMessage each refresh.
+     */
+    public void setFeedEncoder(FeedEncoder encoder) {
+	_feedEncoder = encoder;
+    }
+
+    /**
+     * @return the handler serving the encoded locations feed.
+     */
+    public CachedFeedHandler getEncodedLocationsHandler() {
+	return _encodedLocationsHandler;
+    }
+
+    /**
+     * Also render the locations feed as JSON, with a gzipped copy.
+     */
+    public void setJsonFeed() {
+	_jsonWriter = new JsonFeedWriter();
+    }
+
+    /**
+     * @return the handler serving the JSON locations feed.
+     */
+    public CachedFeedHandler getJsonLocationsHandler() {
+	return _jsonLocationsHandler;
+    }
+
+    /**
+     * @return a handler serving the encoded locations feed, or its text
+     *         format for requests with a "debug" parameter, as the
+     *         exporter's servlet does.
+     */
+    public HttpHandler getLocationsHandler() {
+	return new LocationsHandler();
+    }
+
+    /**
+     * Partition vehicles by the value at groupKeyPath in their documents,
+     * eg. "entity.vehicle.trip.route_id", with a feed for each partition.
+     */
+    public void setPartitions(String groupKeyPath) {
+	_groupKeyPath = groupKeyPath;
+	_partitions = new LocationPartitions();
+    }
+
+    public LocationPartitions getPartitions() {
+	return _partitions;
+    }
+
+    /**
+     * Split the vehicle IDs into partitions contiguous ID ranges, and
+     * download each range concurrently, on up to as many threads as the
+     * client has connections per host.
+     */
+    public void setFetchPartitions(int partitions) {
+	_fetchPartitions = partitions;
+    }
+
+    /**
+     * Keep the last depth locations of each vehicle in memory.
+     */
+    public void setHistoryDepth(int depth) {
+	_history = new VehicleHistory(depth);
+    }
+
+    public VehicleHistory getHistory() {
+	return _history;
+    }
+
+    /**
+     * Accept pushed locations, buffering up to bufferSize of them to be
+     * inserted into the collection in batches of batchSize, and
+     * republishing the feed publishDelay ms after they are accepted.
+     */
+    public void setIngest(int bufferSize, int batchSize, long publishDelay) {
+	if (_coll == null)
+	    throw new IllegalStateException("Need a collection to persist ingested locations.");
+	_ingester = new LocationIngester(locationList,
+					 new WriteBehindWriter(_coll, bufferSize, batchSize),
+					 _groupKeyPath);
+	_ingester.setAcceptedCallback(new Runnable() {
+		@Override
+		    public void run() {
+		    scheduleIngestPublish();
+		}
+	    });
+	_ingestPublishDelay = publishDelay;
+    }
+
+    /**
+     * Also accept pushed locations as UDP datagrams on port.
+     */
+    public void setIngestPort(int port) {
+	_datagramListener = new LocationDatagramListener(port, _ingester);
+    }
+
+    public LocationIngester getIngester() {
+	return _ingester;
+    }
 
     /**
      * @param refreshInterval how often alerts will be downloaded, in seconds.
@@ -158,10 +423,56 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 	public void start() {
 	_executor = Executors.newSingleThreadScheduledExecutor();
 	_log.info("starting GTFS-realtime service");
-	_executor.scheduleAtFixedRate(new BusListRefreshTask(), 0, _busListInterval,
-				      TimeUnit.SECONDS);
+	if (_replayer != null) {
+	    _replayThread = new Thread(_replayer, "location-replay");
+	    _replayThread.setDaemon(true);
+	    _replayThread.start();
+	}
+	else {
+	    if (_archive != null)
+		locationList.addListener(_archive);
+	    _executor.scheduleAtFixedRate(new BusListRefreshTask(), 0, _busListInterval,
+					  TimeUnit.SECONDS);
+	}
 	_executor.scheduleAtFixedRate(new LocationRefreshTask(), 0, _refreshInterval,
 				      TimeUnit.SECONDS);
+	if (_fetchPartitions > 1 && _client != null) {
+	    int threads = Math.min(_fetchPartitions,
+				   _client.getMongoOptions().getConnectionsPerHost());
+	    _fetchExecutor = Executors.newFixedThreadPool(Math.max(threads, 1));
+	    try {
+		_coll.ensureIndex(FETCH_INDEX, new BasicDBObject("background", true));
+	    } catch (MongoException ex) {
+		_log.warn("unable to index " + FETCH_INDEX + "; partitioned downloads"
+			  + " will sort in memory", ex);
+	    }
+	}
+	if (_history != null)
+	    locationList.addListener(_history);
+	if (_partitions != null) {
+	    locationList.addListener(_partitions);
+	    if (_feedEncoder == null)
+		_partitionEncoder = new FeedEncoder(1);
+	}
+	if (_deadReckoner != null || _ingester != null)
+	    _publishExecutor = Executors.newSingleThreadScheduledExecutor();
+	if (_ingester != null) {
+	    _ingester.getWriter().start();
+	    if (_datagramListener != null) {
+		try {
+		    _datagramListener.start();
+		} catch (SocketException ex) {
+		    throw new IllegalStateException("unable to listen for location datagrams", ex);
+		}
+	    }
+	}
+	if (_deadReckoner != null) {
+	    locationList.addListener(_deadReckoner);
+	    _publishExecutor.scheduleAtFixedRate(new ExtrapolateTask(),
+						 _extrapolateInterval,
+						 _extrapolateInterval,
+						 TimeUnit.MILLISECONDS);
+	}
     }
 
     /**
@@ -171,6 +482,20 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 	public void stop() {
 	_log.info("stopping GTFS-realtime service");
 	_executor.shutdownNow();
+	if (_publishExecutor != null)
+	    _publishExecutor.shutdownNow();
+	if (_feedEncoder != null)
+	    _feedEncoder.shutdown();
+	if (_fetchExecutor != null)
+	    _fetchExecutor.shutdownNow();
+	if (_datagramListener != null)
+	    _datagramListener.stop();
+	if (_ingester != null)
+	    _ingester.getWriter().stop();
+	if (_replayThread != null)
+	    _replayThread.interrupt();
+	if (_archive != null)
+	    _archive.close();
     }
 
     
@@ -192,7 +517,16 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
      */
     @Override
 	public FeedMessage getVehiclePositions() {
-	return _locs;
+	synchronized (_locsLock) {
+	    if (_locs == null) {
+		try {
+		    _locs = FeedMessage.parseFrom(_encodedLocationsHandler.getFeed().getData());
+		} catch (InvalidProtocolBufferException ex) {
+		    throw new IllegalStateException("unable to parse encoded locations", ex);
+		}
+	    }
+	    return _locs;
+	}
     }
     
     /**
@@ -215,36 +549,133 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
     private void refreshLocations() throws IOException {
 	
 	/**
-	 * We download the locations as an array of DBObjects.
+	 * While replaying, the replay thread fills locationList instead.
 	 */
-	ArrayList<DBObject> dbList = downloadLocations();
+	if (_replayer == null) {
+	    /**
+	     * We download the locations as an array of DBObjects.
+	     */
+	    ArrayList<DBObject> dbList = downloadLocations();
 	
-	/**
-	 * We iterate over every DBObject returned by the MongoDB query,
-	 * turn them into a Location, and add them to locationList (though
-	 * addLocation() only adds a Location to the list if it is actually
-	 * new).
-	 */
-	for (int i = 0; i < dbList.size(); ++i) {
-	    DBObject obj = dbList.get(i);
-	    Location newLoc = new Location(obj);
-	    locationList.addLocation(newLoc);
+	    /**
+	     * We iterate over every DBObject returned by the MongoDB query,
+	     * turn them into a Location, and add them to locationList (though
+	     * addLocation() only adds a Location to the list if it is actually
+	     * new).
+	     */
+	    long polledTime = _currtime;
+	    for (int i = 0; i < dbList.size(); ++i) {
+		DBObject obj = dbList.get(i);
+		Location newLoc = new Location(obj, _groupKeyPath);
+		locationList.addLocation(newLoc);
+		polledTime = Math.max(polledTime, newLoc.getTimestamp());
+	    }
+
+	    /* Update current time for subsequent queries: */
+	    _currtime = polledTime;
 	}
+	long timeNow = currentTime();
 
 	_log.info("clearing locations older than " + _ageLim/60/1000 + " minutes");
-	locationList.clearOld(_ageLim);
+	locationList.clearOld(_ageLim, timeNow);
 	
+	int count = publishLocations(timeNow);
+	_log.info("locs extracted: " + count);
+	if (_deadReckoner != null)
+	    _log.info(_deadReckoner.getErrorSummary());
+	if (_ingester != null)
+	    logIngest();
+	if (_jsonStats != null)
+	    _log.info(_jsonStats);
+    }
+    
+    /**
+     * Build out the final GTFS-realtime feed message and save it to the
+     * locations field, extrapolating positions to timeNow if enabled.
+     *
+     * @return the number of locations published.
+     */
+    private int publishLocations(long timeNow) {
+	synchronized (_publishLock) {
+	    return publishLocationsLocked(timeNow);
+	}
+    }
+
+    private int publishLocationsLocked(long timeNow) {
+	List<Location> locs = locationList.getLocations();
+	if (_deadReckoner != null)
+	    locs = _deadReckoner.extrapolateAll(locs, timeNow);
+
 	/**
-	 * Build out the final GTFS-realtime feed message and save it to the alerts
-	 * field.
+	 * Every feed of one version shares one header, so they all carry
+	 * the same timestamp.
 	 */
-	_locs = locationList.getLocationFeedMessage();
-	_log.info("locs extracted: " + _locs.getEntityCount());
+	long version = _feedVersion.incrementAndGet();
+	FeedHeader header = GtfsRealtimeLibrary.createFeedMessageBuilder().getHeader();
+	if (_feedEncoder != null) {
+	    CachedFeed feed = new CachedFeed(_feedEncoder.encode(locs, header), version);
+	    synchronized (_locsLock) {
+		_encodedLocationsHandler.setFeed(feed);
+		_locs = null;
+	    }
+	}
+	else {
+	    _locs = LocationList.buildFeedMessage(locs, header);
+	}
+
+	if (_jsonWriter != null) {
+	    long start = System.nanoTime();
+	    CachedFeed json = CachedFeed.withGzip(_jsonWriter.render(locs, header), version);
+	    _jsonLocationsHandler.setFeed(json);
+	    _jsonStats = "json: " + json.getData().length + " bytes, "
+		+ json.getGzipData().length + " gzipped, rendered in "
+		+ (System.nanoTime() - start) / 1000 + " us";
+	}
 
-	/* Update current time for subsequent queries: */
-	_currtime = locationList.maxTime();
+	if (_partitions != null) {
+	    FeedEncoder encoder = _feedEncoder != null ? _feedEncoder : _partitionEncoder;
+	    _partitions.publish(encoder, _deadReckoner, timeNow, header, version);
+	}
+	return locs.size();
     }
-    
+
+    /**
+     * Republish the feed after _ingestPublishDelay, unless that is
+     * already scheduled.
+     */
+    private void scheduleIngestPublish() {
+	ScheduledExecutorService executor = _publishExecutor;
+	if (executor == null || !_ingestPublishScheduled.compareAndSet(false, true))
+	    return;
+	executor.schedule(new IngestPublishTask(), _ingestPublishDelay,
+			  TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log ingest persistence progress since the last refresh.
+     */
+    private void logIngest() {
+	WriteBehindWriter writer = _ingester.getWriter();
+	long written = writer.getWritten();
+	String msg = "ingest: " + (written - _lastWritten) + " locations written in "
+	    + _refreshInterval + "s, " + writer.getPending() + " pending";
+	if (writer.getDeadLettered() > 0)
+	    msg += ", " + writer.getDeadLettered() + " dead lettered";
+	if (_datagramListener != null)
+	    msg += ", " + _datagramListener.getDropped() + " datagram locations dropped";
+	_log.info(msg);
+	_lastWritten = written;
+    }
+
+    /**
+     * @return the current time in ms, or the replay clock while replaying.
+     */
+    private long currentTime() {
+	if (_replayer != null)
+	    return _replayer.getClock();
+	return System.currentTimeMillis();
+    }
+
     /**
      * @return a DBObject array of recent entries in MongoDB collection.
      */
@@ -255,19 +686,132 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 	// _log.info("success: bus IDs");
 	// System.out.println(busIDs);
 
-	ArrayList<DBObject> myList = new ArrayList<DBObject>();
 	ArrayList<Object> busIDs = locationList.getBusIDs();
+	long since = _currtime;
+	if (_fetchExecutor == null)
+	    return downloadLocations(busIDs, since);
+
+	/**
+	 * Sort the bus IDs and split them into contiguous ranges, one per
+	 * partition, then query the ranges concurrently, one query each.
+	 */
+	long start = System.currentTimeMillis();
+	List<Object> sorted = new ArrayList<Object>(busIDs);
+	Collections.sort(sorted, new Comparator<Object>() {
+		@Override
+		    public int compare(Object a, Object b) {
+		    return a.toString().compareTo(b.toString());
+		}
+	    });
+
+	Set<String> ids = new HashSet<String>();
+	for (Object busID : sorted) {
+	    ids.add(busID.toString());
+	}
+
+	List<Future<ArrayList<DBObject>>> futures = new ArrayList<Future<ArrayList<DBObject>>>();
+	int rangeSize = (sorted.size() + _fetchPartitions - 1) / _fetchPartitions;
+	for (int from = 0; from < sorted.size(); from += rangeSize) {
+	    // Each range ends where the next begins; the first and last are
+	    // open-ended.
+	    String lower = from == 0 ? null : sorted.get(from).toString();
+	    String upper = from + rangeSize >= sorted.size() ? null
+		: sorted.get(from + rangeSize).toString();
+	    futures.add(_fetchExecutor.submit(new DownloadTask(lower, upper, ids, since)));
+	}
+
+	ArrayList<DBObject> myList = new ArrayList<DBObject>();
+	try {
+	    for (Future<ArrayList<DBObject>> future : futures) {
+		myList.addAll(future.get());
+	    }
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted downloading locations", ex);
+	} catch (ExecutionException ex) {
+	    throw new IOException("error downloading locations", ex.getCause());
+	}
+	_log.info("downloaded " + myList.size() + " locations in " + futures.size()
+		  + " partitions in " + (System.currentTimeMillis() - start) + " ms");
+	return myList;
+    }
+
+    /**
+     * @return the most recent entry newer than since for each vehicle in
+     *         ids with an ID in [lower, upper), where a null bound is open.
+     *         Each entry has the document's entity, and the top-level
+     *         field holding the partition key if that is not under entity.
+     */
+    private ArrayList<DBObject> downloadRange(String lower, String upper, Set<String> ids,
+					      long since) {
+	BasicDBObject idRange = new BasicDBObject();
+	if (lower != null)
+	    idRange.append("$gte", lower);
+	if (upper != null)
+	    idRange.append("$lt", upper);
+
+	BasicDBObject query = new BasicDBObject("entity.vehicle.timestamp",
+						new BasicDBObject("$gt", since));
+	if (!idRange.isEmpty())
+	    query.append("entity.id", idRange);
+	query.append(LocationIngester.INGESTED_FIELD, new BasicDBObject("$ne", true));
+
+	/**
+	 * Sort newest first within each vehicle, which FETCH_INDEX covers,
+	 * and keep the first entry per vehicle, so the server only returns
+	 * one document per vehicle however much history matches.
+	 */
+	BasicDBObject group = new BasicDBObject("_id", "$entity.id")
+	    .append("entity", new BasicDBObject("$first", "$entity"));
+	String keyField = getGroupKeyField();
+	if (keyField != null)
+	    group.append(keyField, new BasicDBObject("$first", "$" + keyField));
+
+	AggregationOutput output = _coll.aggregate(new BasicDBObject("$match", query),
+						   new BasicDBObject("$sort", FETCH_INDEX),
+						   new BasicDBObject("$group", group));
+
+	ArrayList<DBObject> myList = new ArrayList<DBObject>();
+	for (DBObject myDoc : output.results()) {
+	    Object id = myDoc.get("_id");
+	    if (id != null && ids.contains(id.toString()))
+		myList.add(myDoc);
+	}
+	return myList;
+    }
+
+    /**
+     * @return the top-level document field holding the partition key, or
+     *         null if there is no key or it is under entity.
+     */
+    private String getGroupKeyField() {
+	if (_groupKeyPath == null)
+	    return null;
+	int dot = _groupKeyPath.indexOf('.');
+	String field = dot < 0 ? _groupKeyPath : _groupKeyPath.substring(0, dot);
+	return field.equals("entity") || field.equals("_id") ? null : field;
+    }
+
+    /**
+     * @return the most recent entry newer than since for each of busIDs.
+     */
+    private ArrayList<DBObject> downloadLocations(List<Object> busIDs, long since) {
+	ArrayList<DBObject> myList = new ArrayList<DBObject>();
 
 	// Loop over bus ids; get most recent timestamp for each
 	for (Object busID : busIDs) {
 	    ArrayList queryList = new ArrayList();
 	    // most recent timestamp:
 	    queryList.add(new BasicDBObject("entity.vehicle.timestamp", 
-					    new BasicDBObject("$gt",_currtime)));
+					    new BasicDBObject("$gt",since)));
 
 	    // match on bus ID:
 	    queryList.add(new BasicDBObject("entity.id",busID.toString()));
 
+	    // skip pushed locations, which are already in the list:
+	    queryList.add(new BasicDBObject(LocationIngester.INGESTED_FIELD,
+					    new BasicDBObject("$ne", true)));
+
 	    // build full query
 	    BasicDBObject query = new BasicDBObject("$and", queryList);
 
@@ -347,6 +891,91 @@ public class GtfsRealtimeProviderImpl implements GtfsRealtimeProvider {
 	}
     }
 
+    /**
+     * Task that will rebuild the extrapolated locations feed when executed.
+     */
+    private class ExtrapolateTask implements Runnable {
+	
+	@Override
+	    public void run() {
+	    try {
+		publishLocations(currentTime());
+	    } catch (Exception ex) {
+		_log.warn("Error in location extrapolation task", ex);
+	    }
+	}
+    }
+
+    /**
+     * Task that will republish the feed with newly ingested locations
+     * when executed.
+     */
+    private class IngestPublishTask implements Runnable {
+
+	@Override
+	    public void run() {
+	    // Locations accepted from here on need another publish.
+	    _ingestPublishScheduled.set(false);
+	    try {
+		publishLocations(currentTime());
+	    } catch (Exception ex) {
+		_log.warn("Error in ingest publish task", ex);
+	    }
+	}
+    }
+
+    /**
+     * Task that will download the latest locations for a range of bus IDs
+     * when executed.
+     */
+    private class DownloadTask implements Callable<ArrayList<DBObject>> {
+
+	private final String _lower;
+
+	private final String _upper;
+
+	private final Set<String> _ids;
+
+	private final long _since;
+
+	public DownloadTask(String lower, String upper, Set<String> ids, long since) {
+	    _lower = lower;
+	    _upper = upper;
+	    _ids = ids;
+	    _since = since;
+	}
+
+	@Override
+	    public ArrayList<DBObject> call() {
+	    return downloadRange(_lower, _upper, _ids, _since);
+	}
+    }
+
+    /**
+     * Serves the encoded locations feed, or its text format for debugging.
+     */
+    private class LocationsHandler implements HttpHandler {
+
+	@Override
+	    public void handle(HttpExchange exchange) throws IOException {
+	    String query = exchange.getRequestURI().getQuery();
+	    if (query == null || !query.contains("debug")) {
+		_encodedLocationsHandler.handle(exchange);
+		return;
+	    }
+	    try {
+		byte[] data = getVehiclePositions().toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, data.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(data);
+		out.close();
+	    } finally {
+		exchange.close();
+	    }
+	}
+    }
+
     /**
      * Task that will download bus IDs from the remote data source when
      * executed.
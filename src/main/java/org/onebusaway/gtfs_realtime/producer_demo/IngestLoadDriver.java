@@ -0,0 +1,226 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Measures sustained ingest throughput by POSTing location documents to
+ * an --ingestUrl at a fixed rate. Reports accepted locations per second,
+ * and how long it took for the write-behind buffer to fill, ie. for the
+ * first location to be rejected.
+ *
+ * Usage: IngestLoadDriver url rate batch seconds [vehicles] [threads]
+ *
+ *   rate      locations per second to send
+ *   batch     locations per POST
+ *   seconds   how long to send for
+ *   vehicles  number of distinct vehicle ids to cycle through (default 1000)
+ *   threads   concurrent senders sharing the rate (default 4)
+ */
+public class IngestLoadDriver {
+
+    private final URL _url;
+
+    private final int _batch;
+
+    private final int _vehicles;
+
+    private final long _start = System.nanoTime();
+
+    private final long _end;
+
+    /**
+     * Time between POSTs on each sender thread, in ns.
+     */
+    private final long _interval;
+
+    private final AtomicLong _sent = new AtomicLong();
+
+    private final AtomicLong _accepted = new AtomicLong();
+
+    private final AtomicLong _rejected = new AtomicLong();
+
+    private final AtomicLong _errors = new AtomicLong();
+
+    /**
+     * Time until the first rejected location, in ms, or -1.
+     */
+    private final AtomicLong _fullAfter = new AtomicLong(-1);
+
+    public IngestLoadDriver(URL url, int rate, int batch, int seconds, int vehicles,
+			    int threads) {
+	_url = url;
+	_batch = batch;
+	_vehicles = vehicles;
+	_end = _start + seconds * 1000000000L;
+	_interval = (long) (batch * 1e9 * threads / rate);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+	if (args.length < 4) {
+	    System.err.println("usage: IngestLoadDriver url rate batch seconds [vehicles] [threads]");
+	    System.exit(-1);
+	}
+	URL url = new URL(args[0]);
+	int rate = Integer.parseInt(args[1]);
+	int batch = Integer.parseInt(args[2]);
+	int seconds = Integer.parseInt(args[3]);
+	int vehicles = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+	int threads = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+
+	new IngestLoadDriver(url, rate, batch, seconds, vehicles, threads).run(threads);
+    }
+
+    public void run(int threads) throws InterruptedException {
+	List<Thread> senders = new ArrayList<Thread>();
+	for (int i = 0; i < threads; i++) {
+	    // Stagger the senders evenly over one interval.
+	    final long offset = _interval * i / threads;
+	    Thread sender = new Thread(new Runnable() {
+		    @Override
+			public void run() {
+			send(_start + offset);
+		    }
+		}, "ingest-load-" + i);
+	    sender.start();
+	    senders.add(sender);
+	}
+
+	long lastReport = _start;
+	long lastSent = 0;
+	long lastAccepted = 0;
+	while (System.nanoTime() < _end) {
+	    Thread.sleep(1000);
+	    long now = System.nanoTime();
+	    long sent = _sent.get();
+	    long accepted = _accepted.get();
+	    double elapsed = (now - lastReport) / 1e9;
+	    System.out.println(String.format("%6.1fs  sent %8.0f/s  accepted %8.0f/s  rejected %d",
+					     (now - _start) / 1e9,
+					     (sent - lastSent) / elapsed,
+					     (accepted - lastAccepted) / elapsed,
+					     _rejected.get()));
+	    lastReport = now;
+	    lastSent = sent;
+	    lastAccepted = accepted;
+	}
+	for (Thread sender : senders) {
+	    sender.join();
+	}
+
+	double elapsed = (System.nanoTime() - _start) / 1e9;
+	System.out.println(String.format("sent %d locations in %.1fs (%.0f/s), accepted %.0f/s, "
+					 + "rejected %d, failed requests %d",
+					 _sent.get(), elapsed, _sent.get() / elapsed,
+					 _accepted.get() / elapsed, _rejected.get(), _errors.get()));
+	if (_fullAfter.get() < 0)
+	    System.out.println("buffer never filled");
+	else
+	    System.out.println("buffer full after " + _fullAfter.get() + " ms");
+    }
+
+    /**
+     * POST a batch every _interval from next until the end of the run.
+     * A sender that falls behind sends as fast as it can to catch up.
+     */
+    private void send(long next) {
+	while (true) {
+	    long wait = next - System.nanoTime();
+	    if (wait > 0) {
+		try {
+		    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		} catch (InterruptedException ex) {
+		    return;
+		}
+	    }
+	    if (System.nanoTime() >= _end)
+		return;
+	    next += _interval;
+
+	    StringBuilder body = new StringBuilder("[");
+	    long timestamp = System.currentTimeMillis();
+	    long first = _sent.getAndAdd(_batch);
+	    for (int i = 0; i < _batch; i++) {
+		if (i > 0)
+		    body.append(',');
+		appendDocument(body, "load-" + ((first + i) % _vehicles), timestamp);
+	    }
+	    body.append(']');
+
+	    DBObject result = post(_url, body.toString());
+	    if (result == null) {
+		_errors.incrementAndGet();
+		continue;
+	    }
+	    _accepted.addAndGet(((Number) result.get("accepted")).longValue());
+	    long rejected = ((Number) result.get("rejected")).longValue();
+	    if (rejected > 0) {
+		_rejected.addAndGet(rejected);
+		_fullAfter.compareAndSet(-1, (System.nanoTime() - _start) / 1000000);
+	    }
+	}
+    }
+
+    private static void appendDocument(StringBuilder body, String id, long timestamp) {
+	body.append("{\"entity\":{\"id\":\"").append(id)
+	    .append("\",\"vehicle\":{\"timestamp\":").append(timestamp)
+	    .append(",\"position\":{\"latitude\":42.36,\"longitude\":-71.06,")
+	    .append("\"bearing\":90.0,\"speed\":5.0}}}}");
+    }
+
+    /**
+     * @return the ingest counts, or null if the request failed.
+     */
+    private static DBObject post(URL url, String body) {
+	try {
+	    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+	    conn.setRequestMethod("POST");
+	    conn.setDoOutput(true);
+	    conn.setRequestProperty("Content-Type", "application/json");
+	    OutputStream out = conn.getOutputStream();
+	    out.write(body.getBytes("UTF-8"));
+	    out.close();
+
+	    int status = conn.getResponseCode();
+	    // A 503 still carries the counts.
+	    InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+	    if (in == null)
+		return null;
+	    ByteArrayOutputStream response = new ByteArrayOutputStream();
+	    byte[] buf = new byte[1024];
+	    int n;
+	    while ((n = in.read(buf)) != -1) {
+		response.write(buf, 0, n);
+	    }
+	    in.close();
+	    if (status != 200 && status != 503)
+		return null;
+	    return (DBObject) JSON.parse(response.toString("UTF-8"));
+	} catch (IOException ex) {
+	    return null;
+	}
+    }
+}
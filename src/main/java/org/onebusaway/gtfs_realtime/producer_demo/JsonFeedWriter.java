@@ -0,0 +1,170 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.util.List;
+
+import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeLibrary;
+
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+
+/**
+ * Renders a list of locations as a JSON vehicle positions feed for
+ * clients that can't parse protobuf, writing straight into a reusable
+ * buffer. The structure and field names follow the GTFS-realtime
+ * FeedMessage:
+ *
+ *   {"header": {"gtfs_realtime_version": "1.0",
+ *               "incrementality": "FULL_DATASET", "timestamp": 1365614681},
+ *    "entity": [{"id": "1234",
+ *                "vehicle": {"trip": {"trip_id": "...", "route_id": "..."},
+ *                            "position": {"latitude": 42.3, "longitude": -71.1,
+ *                                         "bearing": 90.0, "speed": 5.5},
+ *                            "timestamp": 1365614681000,
+ *                            "vehicle": {"id": "1234"}}}, ...]}
+ *
+ * An extrapolated position also has "extrapolated_from", the timestamp
+ * of the fix it was extrapolated from. Output is plain ASCII; other
+ * characters in strings are written as unicode escapes.
+ */
+public class JsonFeedWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private byte[] buf = new byte[64 * 1024];
+    private int pos = 0;
+
+    /**
+     * @return locs rendered as a JSON feed with a fresh header.
+     */
+    public byte[] render(List<Location> locs) {
+	return render(locs, GtfsRealtimeLibrary.createFeedMessageBuilder().getHeader());
+    }
+
+    /**
+     * @return locs rendered as a JSON feed with the given header.
+     */
+    public synchronized byte[] render(List<Location> locs, FeedHeader header) {
+	pos = 0;
+
+	raw("{\"header\":{\"gtfs_realtime_version\":");
+	string(header.getGtfsRealtimeVersion());
+	raw(",\"incrementality\":");
+	string(header.getIncrementality().name());
+	raw(",\"timestamp\":");
+	number(header.getTimestamp());
+	raw("},\"entity\":[");
+
+	int len = locs.size();
+	for (int i = 0; i < len; i++) {
+	    Location loc = locs.get(i);
+	    if (i > 0)
+		raw(",");
+	    raw("{\"id\":");
+	    string(loc.getId());
+	    raw(",\"vehicle\":{");
+	    if (loc.hasTrip()) {
+		raw("\"trip\":{");
+		if (loc.getTripId() != null) {
+		    raw("\"trip_id\":");
+		    string(loc.getTripId());
+		}
+		if (loc.getRouteId() != null) {
+		    raw(loc.getTripId() != null ? ",\"route_id\":" : "\"route_id\":");
+		    string(loc.getRouteId());
+		}
+		raw("},");
+	    }
+	    raw("\"position\":{\"latitude\":");
+	    number(loc.getLatitude());
+	    raw(",\"longitude\":");
+	    number(loc.getLongitude());
+	    raw(",\"bearing\":");
+	    number(loc.getBearing());
+	    raw(",\"speed\":");
+	    number(loc.getSpeed());
+	    raw("},\"timestamp\":");
+	    number(loc.getTimestamp());
+	    raw(",\"vehicle\":{\"id\":");
+	    string(loc.getId());
+	    raw("}");
+	    if (loc.isExtrapolated()) {
+		raw(",\"extrapolated_from\":");
+		number(loc.getFixTimestamp());
+	    }
+	    raw("}}");
+	}
+	raw("]}");
+
+	byte[] result = new byte[pos];
+	System.arraycopy(buf, 0, result, 0, pos);
+	return result;
+    }
+
+    /**
+     * Write s, which must be ASCII, as is.
+     */
+    private void raw(String s) {
+	int len = s.length();
+	ensure(len);
+	for (int i = 0; i < len; i++) {
+	    buf[pos++] = (byte) s.charAt(i);
+	}
+    }
+
+    private void number(long value) {
+	raw(Long.toString(value));
+    }
+
+    private void number(float value) {
+	if (Float.isNaN(value) || Float.isInfinite(value))
+	    raw("null");
+	else
+	    raw(Float.toString(value));
+    }
+
+    private void string(String s) {
+	int len = s.length();
+	// Worst case, every char is a six-byte escape.
+	ensure(len * 6 + 2);
+	buf[pos++] = '"';
+	for (int i = 0; i < len; i++) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\') {
+		buf[pos++] = '\\';
+		buf[pos++] = (byte) c;
+	    }
+	    else if (c < 0x20 || c > 0x7e) {
+		buf[pos++] = '\\';
+		buf[pos++] = 'u';
+		buf[pos++] = (byte) HEX[(c >> 12) & 0xf];
+		buf[pos++] = (byte) HEX[(c >> 8) & 0xf];
+		buf[pos++] = (byte) HEX[(c >> 4) & 0xf];
+		buf[pos++] = (byte) HEX[c & 0xf];
+	    }
+	    else {
+		buf[pos++] = (byte) c;
+	    }
+	}
+	buf[pos++] = '"';
+    }
+
+    private void ensure(int extra) {
+	if (pos + extra > buf.length) {
+	    byte[] grown = new byte[Math.max(buf.length * 2, pos + extra)];
+	    System.arraycopy(buf, 0, grown, 0, pos);
+	    buf = grown;
+	}
+    }
+}
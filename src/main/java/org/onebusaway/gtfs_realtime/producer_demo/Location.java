@@ -21,10 +21,12 @@ import javax.inject.Singleton;
 
 import com.mongodb.DBObject;
 
+import com.google.protobuf.UnknownFieldSet;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
 import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 
 /**
  * A simple Java bean describing one vehicle's location.
@@ -33,6 +35,12 @@ import com.google.transit.realtime.GtfsRealtime.Position;
  */
 public class Location {
 
+    /**
+     * VehiclePosition field, from the GTFS-realtime private extension range,
+     * carrying the original fix timestamp of an extrapolated position.
+     */
+    public static final int EXTRAPOLATED_FROM_FIELD = 9000;
+
     private final String id;
 
     private final float latitude;
@@ -42,17 +50,54 @@ public class Location {
 
     private final long timestamp;
 
+    /**
+     * Timestamp of the fix this location was measured at. Differs from
+     * timestamp only for extrapolated locations.
+     */
+    private final long fixTimestamp;
+
+    /**
+     * Optional trip descriptor fields; null when not reported.
+     */
+    private final String tripId;
+    private final String routeId;
+
+    /**
+     * Optional key of the feed partition this vehicle belongs to.
+     */
+    private final String groupKey;
+
     public Location(String id, float latitude, float longitude, 
 		    float bearing, float speed, long timestamp) {
+	this(id, latitude, longitude, bearing, speed, timestamp, timestamp,
+	     null, null, null);
+    }
+
+    private Location(String id, float latitude, float longitude, 
+		     float bearing, float speed, long timestamp,
+		     long fixTimestamp, String tripId, String routeId,
+		     String groupKey) {
 	this.id = id;
 	this.latitude = latitude;
 	this.longitude = longitude;
 	this.bearing = bearing;
 	this.speed = speed;
 	this.timestamp = timestamp;
+	this.fixTimestamp = fixTimestamp;
+	this.tripId = tripId;
+	this.routeId = routeId;
+	this.groupKey = groupKey;
     }
 
     public Location(DBObject obj) {
+	this(obj, null);
+    }
+
+    /**
+     * @param groupKeyPath dotted path of the document field holding the
+     *        partition key (eg. "entity.vehicle.trip.route_id"), or null
+     */
+    public Location(DBObject obj, String groupKeyPath) {
 	/* Inspect the DBObject to make sure it has the right fields,
 	   then use default constructor. */
 
@@ -69,12 +114,29 @@ public class Location {
 
 	long timestamp = (long) objectToDouble(veh.get("timestamp"));
 
+	// A trip that is not a subdocument is treated as not reported.
+	Object tripValue = veh.get("trip");
+	DBObject trip = tripValue instanceof DBObject ? (DBObject) tripValue : null;
+
 	this.id = id;
 	this.latitude = latitude;
 	this.longitude = longitude;
 	this.bearing = bearing;
 	this.speed = speed;
 	this.timestamp = timestamp;
+	this.fixTimestamp = timestamp;
+	this.tripId = trip == null ? null : objectToString(trip.get("trip_id"));
+	this.routeId = trip == null ? null : objectToString(trip.get("route_id"));
+	this.groupKey = groupKeyPath == null ? null : objectToString(getPath(obj, groupKeyPath));
+    }
+
+    /**
+     * @return a copy of this location moved to the given position and
+     *         time, keeping the original fix timestamp.
+     */
+    public Location extrapolatedTo(float latitude, float longitude, long timestamp) {
+	return new Location(id, latitude, longitude, bearing, speed, timestamp,
+			    fixTimestamp, tripId, routeId, groupKey);
     }
 
     public String getId() {
@@ -96,6 +158,24 @@ public class Location {
     public long getTimestamp() {
 	return timestamp;
     }
+    public long getFixTimestamp() {
+	return fixTimestamp;
+    }
+    public boolean isExtrapolated() {
+	return fixTimestamp != timestamp;
+    }
+    public String getTripId() {
+	return tripId;
+    }
+    public String getRouteId() {
+	return routeId;
+    }
+    public boolean hasTrip() {
+	return tripId != null || routeId != null;
+    }
+    public String getGroupKey() {
+	return groupKey;
+    }
 
     public FeedEntity.Builder getFeedEntityBuilder() {
 	/**
@@ -109,6 +189,10 @@ public class Location {
 	   FeedEntity {
 	     String id
 	     VehiclePosition {
+	       TripDescriptor {  (optional)
+	         String trip_id
+	         String route_id
+	       }
 	       Position {
 	         float latitude
 		 float longitude
@@ -126,6 +210,16 @@ public class Location {
 	new_ent.setId(id);
 	    
 	VehiclePosition.Builder new_vpos = VehiclePosition.newBuilder();
+
+	if (hasTrip()) {
+	    TripDescriptor.Builder new_trip = TripDescriptor.newBuilder();
+	    if (tripId != null)
+		new_trip.setTripId(tripId);
+	    if (routeId != null)
+		new_trip.setRouteId(routeId);
+	    new_vpos.setTrip(new_trip);
+	}
+
 	Position.Builder new_pos = Position.newBuilder();
 
 	new_pos.setLatitude(latitude);
@@ -145,6 +239,13 @@ public class Location {
 	new_vpos.setTimestamp(timestamp);
 	new_vpos.setVehicle(new_vd);
 
+	if (isExtrapolated()) {
+	    UnknownFieldSet.Field fix = UnknownFieldSet.Field.newBuilder()
+		.addVarint(fixTimestamp).build();
+	    new_vpos.setUnknownFields(UnknownFieldSet.newBuilder()
+				      .addField(EXTRAPOLATED_FROM_FIELD, fix).build());
+	}
+
 	new_ent.setVehicle(new_vpos);
 
 	return new_ent;
@@ -155,4 +256,22 @@ public class Location {
 	double d = Double.valueOf(str).doubleValue();
 	return d;
     }
+
+    private static String objectToString(Object obj) {
+	return obj == null ? null : obj.toString();
+    }
+
+    /**
+     * @return the value at a dotted path in obj, or null if any part of
+     *         the path is missing.
+     */
+    private static Object getPath(DBObject obj, String path) {
+	Object value = obj;
+	for (String part : path.split("\\.")) {
+	    if (!(value instanceof DBObject))
+		return null;
+	    value = ((DBObject) value).get(part);
+	}
+	return value;
+    }
 }
\ No newline at end of file
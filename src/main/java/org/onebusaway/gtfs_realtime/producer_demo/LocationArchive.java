@@ -0,0 +1,246 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only archive of every accepted location. Locations are written
+ * as fixed-width records to a sequence of memory-mapped segment files
+ * (locations-000000.bin, locations-000001.bin, ...) in one directory.
+ *
+ * Record layout, RECORD_SIZE bytes each:
+ *
+ *   long  timestamp (ms)
+ *   float latitude
+ *   float longitude
+ *   float bearing
+ *   float speed
+ *   byte  id length
+ *   byte[MAX_ID_BYTES] id, UTF-8, zero padded
+ *
+ * Segments are preallocated and zero filled, so the first record with a
+ * zero timestamp marks the end of the data in a segment.
+ */
+public class LocationArchive implements LocationListener {
+
+    private static final Logger _log = LoggerFactory.getLogger(LocationArchive.class);
+
+    public static final int RECORD_SIZE = 64;
+
+    private static final int ID_OFFSET = 25;
+
+    private static final int MAX_ID_BYTES = RECORD_SIZE - ID_OFFSET;
+
+    private static final String SEGMENT_PREFIX = "locations-";
+
+    private static final String SEGMENT_SUFFIX = ".bin";
+
+    private final File _dir;
+
+    private final int _segmentRecords;
+
+    private int _segmentIndex;
+
+    private MappedByteBuffer _segment;
+
+    /**
+     * Open an archive in dir, appending after any records already there.
+     *
+     * @param segmentRecords number of records per newly created segment file
+     */
+    public LocationArchive(File dir, int segmentRecords) throws IOException {
+	if (segmentRecords <= 0)
+	    throw new IllegalArgumentException("segmentRecords must be positive");
+	_dir = dir;
+	_segmentRecords = segmentRecords;
+
+	if (!_dir.isDirectory() && !_dir.mkdirs())
+	    throw new IOException("unable to create archive directory " + _dir);
+
+	List<File> segments = listSegments(_dir);
+	if (segments.isEmpty()) {
+	    openSegment(0);
+	}
+	else {
+	    _segmentIndex = segments.size() - 1;
+	    _segment = map(segments.get(_segmentIndex), 0);
+	    _segment.position(dataEnd(_segment));
+	}
+	_log.info("archiving locations to " + _dir + ", segment " + _segmentIndex);
+    }
+
+    public synchronized void append(Location loc) throws IOException {
+	if (loc.getTimestamp() <= 0) {
+	    // A zero timestamp would read back as the end of the segment.
+	    _log.warn("not archiving location with timestamp " + loc.getTimestamp());
+	    return;
+	}
+	byte[] id = encodeId(loc.getId());
+	if (id.length > MAX_ID_BYTES) {
+	    _log.warn("not archiving location with over-long id " + loc.getId());
+	    return;
+	}
+	if (_segment.remaining() < RECORD_SIZE) {
+	    _segment.force();
+	    openSegment(_segmentIndex + 1);
+	}
+
+	int start = _segment.position();
+	_segment.putLong(loc.getTimestamp());
+	_segment.putFloat(loc.getLatitude());
+	_segment.putFloat(loc.getLongitude());
+	_segment.putFloat(loc.getBearing());
+	_segment.putFloat(loc.getSpeed());
+	_segment.put((byte) id.length);
+	_segment.put(id);
+	_segment.position(start + RECORD_SIZE);
+    }
+
+    /**
+     * Flush the current segment to disk.
+     */
+    public synchronized void close() {
+	_segment.force();
+    }
+
+    @Override
+	public void locationAccepted(Location previous, Location loc) {
+	try {
+	    append(loc);
+	} catch (IOException ex) {
+	    _log.warn("Error archiving location " + loc.getId(), ex);
+	}
+    }
+
+    @Override
+	public void locationEvicted(Location loc) {
+    }
+
+    /**
+     * @return the segment files in dir, in the order they were written.
+     */
+    public static List<File> listSegments(File dir) {
+	File[] files = dir.listFiles(new FilenameFilter() {
+		@Override
+		    public boolean accept(File d, String name) {
+		    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+		}
+	    });
+	if (files == null)
+	    return new ArrayList<File>();
+	// Zero-padded names sort in segment order.
+	Arrays.sort(files);
+	return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    /**
+     * Map a segment file read-only, for replay.
+     */
+    public static MappedByteBuffer mapForRead(File segment) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(segment, "r");
+	try {
+	    return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * @return the record count in segment, up to the first empty record.
+     */
+    public static int recordCount(ByteBuffer segment) {
+	return dataEnd(segment) / RECORD_SIZE;
+    }
+
+    public static long readTimestamp(ByteBuffer segment, int record) {
+	return segment.getLong(record * RECORD_SIZE);
+    }
+
+    public static Location readLocation(ByteBuffer segment, int record) {
+	int start = record * RECORD_SIZE;
+	long timestamp = segment.getLong(start);
+	float latitude = segment.getFloat(start + 8);
+	float longitude = segment.getFloat(start + 12);
+	float bearing = segment.getFloat(start + 16);
+	float speed = segment.getFloat(start + 20);
+
+	int idLength = segment.get(start + 24) & 0xff;
+	byte[] id = new byte[idLength];
+	for (int i = 0; i < idLength; i++) {
+	    id[i] = segment.get(start + ID_OFFSET + i);
+	}
+
+	return new Location(decodeId(id), latitude, longitude, bearing, speed, timestamp);
+    }
+
+    private void openSegment(int index) throws IOException {
+	File file = new File(_dir, String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+	_segment = map(file, (long) _segmentRecords * RECORD_SIZE);
+	_segmentIndex = index;
+	_log.info("opened archive segment " + file);
+    }
+
+    /**
+     * Map file read-write, extending it to minLength if it is shorter.
+     */
+    private static MappedByteBuffer map(File file, long minLength) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    long length = Math.max(raf.length(), minLength);
+	    length -= length % RECORD_SIZE;
+	    return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    private static int dataEnd(ByteBuffer segment) {
+	int records = segment.capacity() / RECORD_SIZE;
+	for (int i = 0; i < records; i++) {
+	    if (segment.getLong(i * RECORD_SIZE) == 0L)
+		return i * RECORD_SIZE;
+	}
+	return records * RECORD_SIZE;
+    }
+
+    private static byte[] encodeId(String id) {
+	try {
+	    return id.getBytes("UTF-8");
+	} catch (UnsupportedEncodingException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    private static String decodeId(byte[] id) {
+	try {
+	    return new String(id, "UTF-8");
+	} catch (UnsupportedEncodingException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+}
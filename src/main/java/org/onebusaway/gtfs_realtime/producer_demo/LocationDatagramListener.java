@@ -0,0 +1,88 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives location documents as UDP datagrams, each holding one document
+ * or a JSON array of them, and passes them to a {@link LocationIngester}.
+ * There is no way to push back on a UDP sender, so documents refused by a
+ * full write-behind buffer are dropped and counted.
+ */
+public class LocationDatagramListener implements Runnable {
+
+    private static final Logger _log = LoggerFactory.getLogger(LocationDatagramListener.class);
+
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final int _port;
+
+    private final LocationIngester _ingester;
+
+    private volatile long _dropped = 0;
+
+    private DatagramSocket _socket;
+
+    private Thread _thread;
+
+    public LocationDatagramListener(int port, LocationIngester ingester) {
+	_port = port;
+	_ingester = ingester;
+    }
+
+    public long getDropped() {
+	return _dropped;
+    }
+
+    public synchronized void start() throws SocketException {
+	_socket = new DatagramSocket(_port);
+	_thread = new Thread(this, "location-datagrams");
+	_thread.setDaemon(true);
+	_thread.start();
+	_log.info("listening for location datagrams on port " + _port);
+    }
+
+    public synchronized void stop() {
+	if (_socket != null)
+	    _socket.close();
+    }
+
+    @Override
+	public void run() {
+	byte[] buf = new byte[MAX_DATAGRAM];
+	DatagramPacket packet = new DatagramPacket(buf, buf.length);
+	while (!_socket.isClosed()) {
+	    try {
+		packet.setLength(buf.length);
+		_socket.receive(packet);
+		String json = new String(buf, 0, packet.getLength(), "UTF-8");
+		LocationIngester.Result result = _ingester.ingest(json);
+		_dropped += result.invalid + result.rejected;
+	    } catch (IOException ex) {
+		if (!_socket.isClosed())
+		    _log.warn("Error receiving location datagram", ex);
+	    } catch (RuntimeException ex) {
+		// Malformed datagram.
+		_dropped++;
+	    }
+	}
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.util.JSONParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Accepts POSTed location documents for a {@link LocationIngester}.
+ * Responds with per-batch counts; if the write-behind buffer filled up
+ * part way, the response is a 503 with Retry-After and the rejected
+ * documents should be resent.
+ */
+public class LocationIngestHandler implements HttpHandler {
+
+    private static final Logger _log = LoggerFactory.getLogger(LocationIngestHandler.class);
+
+    /**
+     * Largest accepted request body, in bytes.
+     */
+    private static final int MAX_BODY = 16 * 1024 * 1024;
+
+    private static final String RETRY_AFTER = "1";
+
+    private final LocationIngester _ingester;
+
+    public LocationIngestHandler(LocationIngester ingester) {
+	_ingester = ingester;
+    }
+
+    @Override
+	public void handle(HttpExchange exchange) throws IOException {
+	try {
+	    if (!"POST".equals(exchange.getRequestMethod())) {
+		exchange.getResponseHeaders().set("Allow", "POST");
+		exchange.sendResponseHeaders(405, -1);
+		return;
+	    }
+
+	    String body = readBody(exchange.getRequestBody());
+	    if (body == null) {
+		exchange.sendResponseHeaders(413, -1);
+		return;
+	    }
+
+	    LocationIngester.Result result;
+	    try {
+		result = _ingester.ingest(body);
+	    } catch (JSONParseException ex) {
+		exchange.sendResponseHeaders(400, -1);
+		return;
+	    }
+
+	    int status = 200;
+	    if (result.rejected > 0) {
+		status = 503;
+		exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+	    }
+	    byte[] response = result.toJson().getBytes("UTF-8");
+	    exchange.getResponseHeaders().set("Content-Type", "application/json");
+	    exchange.sendResponseHeaders(status, response.length);
+	    OutputStream out = exchange.getResponseBody();
+	    out.write(response);
+	    out.close();
+	} catch (IOException ex) {
+	    _log.warn("Error in location ingest request", ex);
+	    throw ex;
+	} finally {
+	    exchange.close();
+	}
+    }
+
+    /**
+     * @return the body as a string, or null if it is larger than MAX_BODY.
+     */
+    private static String readBody(InputStream in) throws IOException {
+	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	byte[] buf = new byte[8192];
+	int n;
+	while ((n = in.read(buf)) != -1) {
+	    if (body.size() + n > MAX_BODY)
+		return null;
+	    body.write(buf, 0, n);
+	}
+	return body.toString("UTF-8");
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Applies pushed locations straight to a {@link LocationList}, and queues
+ * the original documents with a {@link WriteBehindWriter} to be persisted.
+ * Documents have the same JSON shape as those in the MongoDB collection; a
+ * batch is a JSON array of them. Each persisted document is tagged with
+ * INGESTED_FIELD, so that polling MongoDB does not read it back.
+ */
+public class LocationIngester {
+
+    /**
+     * Set to true on documents persisted by the ingester.
+     */
+    public static final String INGESTED_FIELD = "ingested";
+
+    private final LocationList _locationList;
+
+    private final WriteBehindWriter _writer;
+
+    private final String _groupKeyPath;
+
+    /**
+     * Run after each batch with at least one accepted location.
+     */
+    private Runnable _acceptedCallback;
+
+    /**
+     * @param groupKeyPath document path of the partition key, or null
+     */
+    public LocationIngester(LocationList locationList, WriteBehindWriter writer,
+			    String groupKeyPath) {
+	_locationList = locationList;
+	_writer = writer;
+	_groupKeyPath = groupKeyPath;
+    }
+
+    public WriteBehindWriter getWriter() {
+	return _writer;
+    }
+
+    /**
+     * @param callback run after each batch with at least one accepted
+     *        location, eg. to republish the feed
+     */
+    public void setAcceptedCallback(Runnable callback) {
+	_acceptedCallback = callback;
+    }
+
+    /**
+     * Ingest one document or an array of documents.
+     *
+     * @throws com.mongodb.util.JSONParseException if json is not valid JSON
+     */
+    public Result ingest(String json) {
+	Object parsed = JSON.parse(json);
+	List<Object> docs = new ArrayList<Object>();
+	if (parsed instanceof BasicDBList)
+	    docs.addAll((BasicDBList) parsed);
+	else
+	    docs.add(parsed);
+
+	Result result = new Result();
+	for (int i = 0; i < docs.size(); i++) {
+	    Object doc = docs.get(i);
+	    Location loc;
+	    try {
+		loc = new Location((DBObject) doc, _groupKeyPath);
+	    } catch (RuntimeException ex) {
+		// Not shaped like a location document.
+		result.invalid++;
+		continue;
+	    }
+	    ((DBObject) doc).put(INGESTED_FIELD, Boolean.TRUE);
+	    if (!_writer.offer((DBObject) doc)) {
+		// Buffer full: refuse the rest of the batch.
+		result.rejected = docs.size() - i;
+		break;
+	    }
+	    _locationList.addLocation(loc);
+	    result.accepted++;
+	}
+	if (result.accepted > 0 && _acceptedCallback != null)
+	    _acceptedCallback.run();
+	return result;
+    }
+
+    /**
+     * Counts of documents in one ingested batch.
+     */
+    public static class Result {
+
+	/**
+	 * Applied and queued for persistence.
+	 */
+	public int accepted = 0;
+
+	/**
+	 * Not valid location documents.
+	 */
+	public int invalid = 0;
+
+	/**
+	 * Refused because the write-behind buffer was full.
+	 */
+	public int rejected = 0;
+
+	public String toJson() {
+	    return "{\"accepted\":" + accepted + ",\"invalid\":" + invalid
+		+ ",\"rejected\":" + rejected + "}";
+	}
+    }
+}
@@ -16,11 +16,14 @@
 package org.onebusaway.gtfs_realtime.producer_demo;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import javax.inject.Singleton;
 
 import com.mongodb.DBObject;
 
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
@@ -41,58 +44,75 @@ import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeLibrary;
 @Singleton
 public class LocationList {
     ArrayList<Location> locations = new ArrayList<Location>();
+    /**
+     * Index into locations of each vehicle id.
+     */
+    HashMap<String, Integer> indices = new HashMap<String, Integer>();
     ArrayList<Object> busIDs = new ArrayList<Object>();
+    ArrayList<LocationListener> listeners = new ArrayList<LocationListener>();
 
-    public void addLocation(Location newLoc) {
+    public synchronized void addListener(LocationListener listener) {
+	listeners.add(listener);
+    }
+
+    /**
+     * @return true if newLoc was accepted into the list.
+     */
+    public synchronized boolean addLocation(Location newLoc) {
 	/* New vehicle? Add new Location to list.
 	   Old vehicle + new timestamp? Replace old Location w/ new.
 	   Old vehicle + old timestamp? Do not add to list.
 	 */
-	long newTime = newLoc.getTimestamp();
 	String newId = newLoc.getId();
+	Integer index = indices.get(newId);
 
-	boolean replace = false;
-	boolean newVehicle = true;
-	int iReplace = 0;
-
-	int listLen = locations.size();
-	for (int i = 0; i < listLen; i++) {
-	    Location prevLoc = locations.get(i);
-	    long prevTime = prevLoc.getTimestamp();
-	    String prevId = prevLoc.getId();
-
-	    if (prevId.equals(newId)) {
-		newVehicle = false;
-		if (prevTime < newTime) {
-		    // This bus location replaces a previous one in the feed.
-		    iReplace = i;
-		    replace = true;
-		}
-	    }
+	Location prevLoc = null;
+	if (index == null) {
+	    // New vehicle:
+	    indices.put(newId, locations.size());
+	    locations.add(newLoc);
 	}
-	if (replace) {
+	else if (locations.get(index).getTimestamp() < newLoc.getTimestamp()) {
 	    // Old vehicle + updated timestamp:
-	    locations.set(iReplace, newLoc);
+	    prevLoc = locations.set(index, newLoc);
 	}
-	else if (newVehicle) {
-	    // New vehicle:
-	    locations.add(newLoc);
+	else {
+	    return false;
 	}
-	return;
+
+	for (LocationListener listener : listeners) {
+	    listener.locationAccepted(prevLoc, newLoc);
+	}
+	return true;
+    }
+
+    public synchronized FeedMessage getLocationFeedMessage() {
+	return buildFeedMessage(locations);
     }
 
-    public FeedMessage getLocationFeedMessage() {
+    /**
+     * @return a copy of the current locations.
+     */
+    public synchronized ArrayList<Location> getLocations() {
+	return new ArrayList<Location>(locations);
+    }
+
+    public static FeedMessage buildFeedMessage(List<Location> locs) {
+	return buildFeedMessage(locs, GtfsRealtimeLibrary.createFeedMessageBuilder().getHeader());
+    }
+
+    public static FeedMessage buildFeedMessage(List<Location> locs, FeedHeader header) {
 	/**
 	 * The FeedMessage.Builder is what we will use to build up 
 	 * our GTFS-realtime feed. Add all locations to the feed
 	 * and then build and return the result.
 	 */
-	FeedMessage.Builder feedMessage = 
-	    GtfsRealtimeLibrary.createFeedMessageBuilder();
+	FeedMessage.Builder feedMessage = FeedMessage.newBuilder();
+	feedMessage.setHeader(header);
 	
-	int listLen = locations.size();
+	int listLen = locs.size();
 	for (int i = 0; i < listLen; i++) {
-	    Location newLoc = locations.get(i);
+	    Location newLoc = locs.get(i);
 	    FeedEntity.Builder newEnt = newLoc.getFeedEntityBuilder();
 	    feedMessage.addEntity(newEnt);
 	}
@@ -100,7 +120,7 @@ public class LocationList {
 	return feedMessage.build();
     }
 
-    public long maxTime() {
+    public synchronized long maxTime() {
 	/**
 	 * Returns latest timestamp of any vehicle locations.
 	 */
@@ -117,25 +137,38 @@ public class LocationList {
 	return maxStamp;
     }
 
-    public void setBusIDs(ArrayList<Object> newBusIDs) {
+    public synchronized void setBusIDs(ArrayList<Object> newBusIDs) {
 	busIDs = newBusIDs;
     }
 
-    public ArrayList getBusIDs() {
+    public synchronized ArrayList getBusIDs() {
 	return busIDs;
     }
 
     public void clearOld(long ageLim) {
-	Long timeNow = System.currentTimeMillis();
+	clearOld(ageLim, System.currentTimeMillis());
+    }
 
+    /**
+     * Remove locations more than ageLim ms older than timeNow.
+     */
+    public synchronized void clearOld(long ageLim, long timeNow) {
 	ArrayList<Location> newLocations = new ArrayList<Location>();
+	HashMap<String, Integer> newIndices = new HashMap<String, Integer>();
 	
 	for (Location loc : locations) {
 	    if (timeNow - loc.getTimestamp() < ageLim) {
+		newIndices.put(loc.getId(), newLocations.size());
 		newLocations.add(loc);
 	    }
+	    else {
+		for (LocationListener listener : listeners) {
+		    listener.locationEvicted(loc);
+		}
+	    }
 	}
 
 	locations = newLocations;
+	indices = newIndices;
     }
 }
\ No newline at end of file
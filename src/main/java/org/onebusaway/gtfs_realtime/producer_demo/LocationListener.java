@@ -0,0 +1,36 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+/**
+ * Receives changes to a {@link LocationList}. Callbacks are made while the
+ * list is locked, so implementations should be quick and must not call
+ * back into the list.
+ */
+public interface LocationListener {
+
+    /**
+     * Called when a location is accepted into the list.
+     *
+     * @param previous the location being replaced, or null if this is the
+     *        first location for the vehicle
+     * @param loc the newly accepted location
+     */
+    void locationAccepted(Location previous, Location loc);
+
+    /**
+     * Called when a location is removed from the list for being too old.
+     */
+    void locationEvicted(Location loc);
+}
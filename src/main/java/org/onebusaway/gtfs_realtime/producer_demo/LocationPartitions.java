@@ -0,0 +1,125 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+
+/**
+ * Vehicle locations grouped by {@link Location#getGroupKey()}, eg. by
+ * route or operator, each group with its own cached serialized feed.
+ * Groups are kept up to date incrementally as locations are accepted and
+ * evicted, and only groups that changed are re-encoded on publish. A
+ * group is dropped when its last vehicle leaves it.
+ */
+public class LocationPartitions implements LocationListener {
+
+    private final Map<String, Partition> _partitions = new HashMap<String, Partition>();
+
+    private final Object _publishLock = new Object();
+
+    @Override
+	public synchronized void locationAccepted(Location previous, Location loc) {
+	String key = loc.getGroupKey();
+	if (previous != null && previous.getGroupKey() != null
+	    && !previous.getGroupKey().equals(key)) {
+	    // Vehicle moved to another group.
+	    remove(previous);
+	}
+	if (key == null)
+	    return;
+
+	Partition partition = _partitions.get(key);
+	if (partition == null) {
+	    partition = new Partition();
+	    _partitions.put(key, partition);
+	}
+	partition.locations.put(loc.getId(), loc);
+	partition.dirty = true;
+    }
+
+    @Override
+	public synchronized void locationEvicted(Location loc) {
+	if (loc.getGroupKey() != null)
+	    remove(loc);
+    }
+
+    /**
+     * @return the cached feed for key, or null if no vehicle currently
+     *         has that key.
+     */
+    public CachedFeed getFeed(String key) {
+	Partition partition;
+	synchronized (this) {
+	    partition = _partitions.get(key);
+	}
+	return partition == null ? null : partition.feed;
+    }
+
+    /**
+     * Re-encode the feeds of the groups that changed since the last
+     * publish, or of every group when extrapolating.
+     *
+     * @param deadReckoner extrapolates positions to timeNow, or null
+     * @param header header of every re-encoded feed
+     */
+    public void publish(FeedEncoder encoder, DeadReckoner deadReckoner,
+			long timeNow, FeedHeader header, long version) {
+	synchronized (_publishLock) {
+	    Map<Partition, List<Location>> changed = new HashMap<Partition, List<Location>>();
+	    synchronized (this) {
+		for (Partition partition : _partitions.values()) {
+		    if (partition.dirty || deadReckoner != null || partition.feed == null) {
+			changed.put(partition, new ArrayList<Location>(partition.locations.values()));
+			partition.dirty = false;
+		    }
+		}
+	    }
+
+	    for (Map.Entry<Partition, List<Location>> entry : changed.entrySet()) {
+		List<Location> locs = entry.getValue();
+		if (deadReckoner != null)
+		    locs = deadReckoner.extrapolateAll(locs, timeNow);
+		entry.getKey().feed = new CachedFeed(encoder.encode(locs, header), version);
+	    }
+	}
+    }
+
+    private void remove(Location loc) {
+	Partition partition = _partitions.get(loc.getGroupKey());
+	if (partition == null || partition.locations.remove(loc.getId()) == null)
+	    return;
+	if (partition.locations.isEmpty())
+	    _partitions.remove(loc.getGroupKey());
+	else
+	    partition.dirty = true;
+    }
+
+    private static class Partition {
+
+	/**
+	 * Locations by vehicle id, in the order vehicles joined the group.
+	 */
+	final LinkedHashMap<String, Location> locations = new LinkedHashMap<String, Location>();
+
+	boolean dirty = false;
+
+	volatile CachedFeed feed;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feeds the locations in a {@link LocationArchive} back into a
+ * {@link LocationList}, paced at a multiple of real time. Only records with
+ * timestamps in [from, to] are replayed.
+ *
+ * The archive holds records in the order they were accepted, which is
+ * only roughly time order: each refresh adds its batch in bus ID order,
+ * and pushed locations arrive as they are sent. So each segment's records
+ * are sorted by timestamp before they are paced. Records that are out of
+ * order across a segment boundary are replayed as soon as they are reached.
+ */
+public class LocationReplayer implements Runnable {
+
+    private static final Logger _log = LoggerFactory.getLogger(LocationReplayer.class);
+
+    private final File _dir;
+
+    private final long _from;
+
+    private final long _to;
+
+    private final double _speed;
+
+    private final LocationList _locationList;
+
+    /**
+     * Latest archived timestamp replayed so far, in ms. This stands in for
+     * the current time while replaying.
+     */
+    private volatile long _clock;
+
+    /**
+     * @param speed replay rate as a multiple of real time, eg. 10 replays
+     *        ten minutes of archive per minute
+     */
+    public LocationReplayer(File dir, long from, long to, double speed,
+			    LocationList locationList) {
+	if (speed <= 0)
+	    throw new IllegalArgumentException("replay speed must be positive");
+	_dir = dir;
+	_from = from;
+	_to = to;
+	_speed = speed;
+	_locationList = locationList;
+	_clock = from;
+    }
+
+    public long getClock() {
+	return _clock;
+    }
+
+    @Override
+	public void run() {
+	_log.info("replaying " + _dir + " from " + _from + " to " + _to + " at " + _speed + "x");
+	long wallStart = 0L;
+	long archiveStart = 0L;
+	int replayed = 0;
+
+	try {
+	    for (File file : LocationArchive.listSegments(_dir)) {
+		MappedByteBuffer segment = LocationArchive.mapForRead(file);
+
+		for (int i : sortedRecords(segment)) {
+		    long timestamp = LocationArchive.readTimestamp(segment, i);
+
+		    if (replayed == 0) {
+			wallStart = System.currentTimeMillis();
+			archiveStart = timestamp;
+		    }
+		    long due = wallStart + (long) ((timestamp - archiveStart) / _speed);
+		    long wait = due - System.currentTimeMillis();
+		    if (wait > 0)
+			Thread.sleep(wait);
+
+		    _locationList.addLocation(LocationArchive.readLocation(segment, i));
+		    if (timestamp > _clock)
+			_clock = timestamp;
+		    replayed++;
+		}
+	    }
+	    _log.info("replay finished: " + replayed + " locations");
+	} catch (InterruptedException ex) {
+	    _log.info("replay interrupted after " + replayed + " locations");
+	} catch (IOException ex) {
+	    _log.warn("Error replaying archive " + _dir, ex);
+	}
+    }
+
+    /**
+     * @return the records in segment with timestamps in [from, to], in
+     *         timestamp order, keeping archive order for equal timestamps.
+     */
+    private Integer[] sortedRecords(final MappedByteBuffer segment) {
+	int records = LocationArchive.recordCount(segment);
+	List<Integer> inRange = new ArrayList<Integer>();
+	for (int i = 0; i < records; i++) {
+	    long timestamp = LocationArchive.readTimestamp(segment, i);
+	    if (timestamp >= _from && timestamp <= _to)
+		inRange.add(i);
+	}
+
+	Integer[] sorted = inRange.toArray(new Integer[inRange.size()]);
+	// A merge sort, so stable.
+	Arrays.sort(sorted, new Comparator<Integer>() {
+		@Override
+		    public int compare(Integer a, Integer b) {
+		    long ta = LocationArchive.readTimestamp(segment, a);
+		    long tb = LocationArchive.readTimestamp(segment, b);
+		    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+		}
+	    });
+	return sorted;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the feed of one {@link LocationPartitions} group, named by the
+ * last path segment: a handler at /routes serves route 12's vehicles at
+ * /routes/12.
+ */
+public class PartitionFeedHandler implements HttpHandler {
+
+    private final LocationPartitions _partitions;
+
+    private final String _contentType;
+
+    public PartitionFeedHandler(LocationPartitions partitions, String contentType) {
+	_partitions = partitions;
+	_contentType = contentType;
+    }
+
+    @Override
+	public void handle(HttpExchange exchange) throws IOException {
+	String path = exchange.getRequestURI().getRawPath();
+	String key = URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1), "UTF-8");
+
+	CachedFeed feed = _partitions.getFeed(key);
+	if (feed == null) {
+	    try {
+		exchange.sendResponseHeaders(404, -1);
+	    } finally {
+		exchange.close();
+	    }
+	    return;
+	}
+	CachedFeedHandler.serve(exchange, feed, _contentType);
+    }
+}
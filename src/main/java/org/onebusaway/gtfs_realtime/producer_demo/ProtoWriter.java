@@ -0,0 +1,184 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+/**
+ * A growable buffer that writes protobuf wire format directly. Reset and
+ * reuse it rather than allocating a new one for each message.
+ *
+ * Strings are written as UTF-8 the same way String.getBytes("UTF-8") does,
+ * including replacing unpaired surrogates with '?', so output matches the
+ * generated protobuf classes byte for byte.
+ */
+public class ProtoWriter {
+
+    public static final int WIRETYPE_VARINT = 0;
+    public static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    public static final int WIRETYPE_FIXED32 = 5;
+
+    private byte[] buf;
+    private int pos = 0;
+
+    public ProtoWriter(int initialCapacity) {
+	buf = new byte[initialCapacity];
+    }
+
+    public void reset() {
+	pos = 0;
+    }
+
+    public int size() {
+	return pos;
+    }
+
+    /**
+     * Copy the written bytes to dst at offset.
+     */
+    public void copyTo(byte[] dst, int offset) {
+	System.arraycopy(buf, 0, dst, offset, pos);
+    }
+
+    public byte[] toByteArray() {
+	byte[] result = new byte[pos];
+	copyTo(result, 0);
+	return result;
+    }
+
+    public void writeTag(int field, int wireType) {
+	writeVarint((field << 3) | wireType);
+    }
+
+    /**
+     * Write value as an unsigned varint.
+     */
+    public void writeVarint(long value) {
+	ensure(10);
+	while ((value & ~0x7FL) != 0) {
+	    buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	buf[pos++] = (byte) value;
+    }
+
+    public void writeFloat(float value) {
+	int bits = Float.floatToRawIntBits(value);
+	ensure(4);
+	buf[pos++] = (byte) bits;
+	buf[pos++] = (byte) (bits >> 8);
+	buf[pos++] = (byte) (bits >> 16);
+	buf[pos++] = (byte) (bits >> 24);
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string.
+     */
+    public void writeString(String value) {
+	int length = utf8Length(value);
+	writeVarint(length);
+	ensure(length);
+
+	int len = value.length();
+	for (int i = 0; i < len; i++) {
+	    char c = value.charAt(i);
+	    if (c < 0x80) {
+		buf[pos++] = (byte) c;
+	    }
+	    else if (c < 0x800) {
+		buf[pos++] = (byte) (0xC0 | (c >> 6));
+		buf[pos++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	    else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+		if (Character.isHighSurrogate(c) && i + 1 < len
+		    && Character.isLowSurrogate(value.charAt(i + 1))) {
+		    int cp = Character.toCodePoint(c, value.charAt(++i));
+		    buf[pos++] = (byte) (0xF0 | (cp >> 18));
+		    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+		    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+		    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+		}
+		else {
+		    buf[pos++] = (byte) '?';
+		}
+	    }
+	    else {
+		buf[pos++] = (byte) (0xE0 | (c >> 12));
+		buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		buf[pos++] = (byte) (0x80 | (c & 0x3F));
+	    }
+	}
+    }
+
+    public void writeBytes(byte[] value) {
+	writeVarint(value.length);
+	ensure(value.length);
+	System.arraycopy(value, 0, buf, pos, value.length);
+	pos += value.length;
+    }
+
+    public static int tagSize(int field) {
+	return varintSize(field << 3);
+    }
+
+    public static int varintSize(long value) {
+	int size = 1;
+	while ((value & ~0x7FL) != 0) {
+	    size++;
+	    value >>>= 7;
+	}
+	return size;
+    }
+
+    /**
+     * @return the size of a length-prefixed field body of length bytes.
+     */
+    public static int delimitedSize(int length) {
+	return varintSize(length) + length;
+    }
+
+    public static int utf8Length(String value) {
+	int length = 0;
+	int len = value.length();
+	for (int i = 0; i < len; i++) {
+	    char c = value.charAt(i);
+	    if (c < 0x80) {
+		length += 1;
+	    }
+	    else if (c < 0x800) {
+		length += 2;
+	    }
+	    else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+		if (Character.isHighSurrogate(c) && i + 1 < len
+		    && Character.isLowSurrogate(value.charAt(i + 1))) {
+		    i++;
+		    length += 4;
+		}
+		else {
+		    length += 1;
+		}
+	    }
+	    else {
+		length += 3;
+	    }
+	}
+	return length;
+    }
+
+    private void ensure(int extra) {
+	if (pos + extra > buf.length) {
+	    byte[] grown = new byte[Math.max(buf.length * 2, pos + extra)];
+	    System.arraycopy(buf, 0, grown, 0, pos);
+	    buf = grown;
+	}
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Recent locations of each vehicle, kept in memory so that trails can be
+ * served without querying MongoDB. Each vehicle has a fixed-size ring
+ * buffer of primitive arrays holding its last depth accepted locations;
+ * a vehicle's history is dropped when it is evicted from the
+ * {@link LocationList}.
+ */
+public class VehicleHistory implements LocationListener {
+
+    private final int _depth;
+
+    private final Map<String, Track> _tracks = new ConcurrentHashMap<String, Track>();
+
+    public VehicleHistory(int depth) {
+	if (depth <= 0)
+	    throw new IllegalArgumentException("history depth must be positive");
+	_depth = depth;
+    }
+
+    @Override
+	public void locationAccepted(Location previous, Location loc) {
+	Track track = _tracks.get(loc.getId());
+	if (track == null) {
+	    track = new Track(_depth);
+	    _tracks.put(loc.getId(), track);
+	}
+	track.add(loc);
+    }
+
+    @Override
+	public void locationEvicted(Location loc) {
+	_tracks.remove(loc.getId());
+    }
+
+    /**
+     * @param ids vehicles to include, or null for all of them
+     * @param since only include locations newer than this, in ms
+     * @return a JSON object mapping each vehicle id with history to an
+     *         array of its locations, oldest first.
+     */
+    public JSONObject getTracksJson(List<String> ids, long since) {
+	if (ids == null)
+	    ids = new ArrayList<String>(_tracks.keySet());
+	try {
+	    JSONObject json = new JSONObject();
+	    for (String id : ids) {
+		Track track = _tracks.get(id);
+		if (track != null)
+		    json.put(id, track.toJson(since));
+	    }
+	    return json;
+	} catch (JSONException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    /**
+     * Ring buffer of one vehicle's locations.
+     */
+    private static class Track {
+
+	private final long[] timestamps;
+	private final float[] latitudes;
+	private final float[] longitudes;
+	private final float[] speeds;
+	private final float[] bearings;
+
+	/**
+	 * Index the next location will be written at.
+	 */
+	private int head = 0;
+
+	private int size = 0;
+
+	Track(int depth) {
+	    timestamps = new long[depth];
+	    latitudes = new float[depth];
+	    longitudes = new float[depth];
+	    speeds = new float[depth];
+	    bearings = new float[depth];
+	}
+
+	synchronized void add(Location loc) {
+	    timestamps[head] = loc.getTimestamp();
+	    latitudes[head] = loc.getLatitude();
+	    longitudes[head] = loc.getLongitude();
+	    speeds[head] = loc.getSpeed();
+	    bearings[head] = loc.getBearing();
+	    head = (head + 1) % timestamps.length;
+	    if (size < timestamps.length)
+		size++;
+	}
+
+	synchronized JSONArray toJson(long since) throws JSONException {
+	    JSONArray json = new JSONArray();
+	    int depth = timestamps.length;
+	    for (int n = 0; n < size; n++) {
+		int i = (head - size + n + depth) % depth;
+		if (timestamps[i] <= since)
+		    continue;
+		JSONObject point = new JSONObject();
+		point.put("timestamp", timestamps[i]);
+		point.put("latitude", Float.valueOf(latitudes[i]));
+		point.put("longitude", Float.valueOf(longitudes[i]));
+		point.put("speed", Float.valueOf(speeds[i]));
+		point.put("bearing", Float.valueOf(bearings[i]));
+		json.put(point);
+	    }
+	    return json;
+	}
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves recent vehicle tracks from a {@link VehicleHistory} as JSON.
+ * Query parameters:
+ *
+ *   id     vehicle to include; may be repeated; all vehicles if omitted
+ *   since  only include locations newer than this, in ms
+ *
+ * eg. /history?id=1234&id=1235&since=1365614681000
+ */
+public class VehicleHistoryHandler implements HttpHandler {
+
+    private final VehicleHistory _history;
+
+    public VehicleHistoryHandler(VehicleHistory history) {
+	_history = history;
+    }
+
+    @Override
+	public void handle(HttpExchange exchange) throws IOException {
+	try {
+	    List<String> ids = null;
+	    long since = 0L;
+
+	    String query = exchange.getRequestURI().getRawQuery();
+	    if (query != null) {
+		for (String param : query.split("&")) {
+		    int eq = param.indexOf('=');
+		    if (eq < 0)
+			continue;
+		    String name = URLDecoder.decode(param.substring(0, eq), "UTF-8");
+		    String value = URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+		    if (name.equals("id")) {
+			if (ids == null)
+			    ids = new ArrayList<String>();
+			ids.add(value);
+		    }
+		    else if (name.equals("since")) {
+			try {
+			    since = Long.parseLong(value);
+			} catch (NumberFormatException ex) {
+			    exchange.sendResponseHeaders(400, -1);
+			    return;
+			}
+		    }
+		}
+	    }
+
+	    byte[] data = _history.getTracksJson(ids, since).toString().getBytes("UTF-8");
+	    exchange.getResponseHeaders().set("Content-Type", "application/json");
+	    exchange.sendResponseHeaders(200, data.length);
+	    OutputStream out = exchange.getResponseBody();
+	    out.write(data);
+	    out.close();
+	} finally {
+	    exchange.close();
+	}
+    }
+}
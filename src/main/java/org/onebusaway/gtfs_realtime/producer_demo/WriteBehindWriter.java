@@ -0,0 +1,241 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+
+/**
+ * Persists documents to a MongoDB collection in batches on a background
+ * thread. Documents wait in a bounded buffer; when it is full, offer()
+ * refuses new ones, which pushes back on whoever is producing them.
+ *
+ * A batch that fails with an error that may pass on a later attempt (a
+ * network error, or no reachable master) is retried until it succeeds,
+ * so while MongoDB is unavailable the buffer fills and ingest is refused
+ * rather than silently dropped. Any other failure is narrowed down by
+ * inserting the batch one document at a time:
+ *
+ * - The driver sets _id on each document as it is sent, so a document
+ *   that landed before a failed attempt comes back as a duplicate key on
+ *   the next one. It is counted as written.
+ * - A document that MongoDB or the driver will never accept (eg. one with
+ *   a '$' or '.' in a key) is logged to the dead letter logger,
+ *   "org.onebusaway.gtfs_realtime.producer_demo.WriteBehindWriter.deadLetter",
+ *   and dropped.
+ */
+public class WriteBehindWriter implements Runnable {
+
+    private static final Logger _log = LoggerFactory.getLogger(WriteBehindWriter.class);
+
+    /**
+     * Wait between retries of a failed batch, in ms.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    private static final Logger _deadLetterLog =
+	LoggerFactory.getLogger(WriteBehindWriter.class.getName() + ".deadLetter");
+
+    /**
+     * Error codes of writes sent to a server that is not, or is no longer,
+     * the master.
+     */
+    private static final int[] NOT_MASTER_CODES = { 10054, 10056, 10058, 10107, 13435, 13436 };
+
+    private final DBCollection _coll;
+
+    private final BlockingQueue<DBObject> _buffer;
+
+    private final int _batchSize;
+
+    private final AtomicLong _written = new AtomicLong();
+
+    private final AtomicLong _deadLettered = new AtomicLong();
+
+    private Thread _thread;
+
+    public WriteBehindWriter(DBCollection coll, int bufferSize, int batchSize) {
+	_coll = coll;
+	_buffer = new ArrayBlockingQueue<DBObject>(bufferSize);
+	_batchSize = batchSize;
+    }
+
+    /**
+     * @return false if the buffer is full and doc was not queued.
+     */
+    public boolean offer(DBObject doc) {
+	return _buffer.offer(doc);
+    }
+
+    public int getPending() {
+	return _buffer.size();
+    }
+
+    public long getWritten() {
+	return _written.get();
+    }
+
+    /**
+     * @return the number of documents dropped because they could not be
+     *         inserted.
+     */
+    public long getDeadLettered() {
+	return _deadLettered.get();
+    }
+
+    public synchronized void start() {
+	_thread = new Thread(this, "write-behind");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+    /**
+     * Stop the writer thread, making one last attempt to write whatever is
+     * still buffered.
+     */
+    public synchronized void stop() {
+	if (_thread != null) {
+	    _thread.interrupt();
+	    try {
+		_thread.join(RETRY_DELAY);
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	ArrayList<DBObject> batch = new ArrayList<DBObject>();
+	while (_buffer.drainTo(batch, _batchSize) > 0) {
+	    try {
+		write(batch, false);
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		return;
+	    } catch (RuntimeException ex) {
+		_log.warn("Dropping " + (batch.size() + _buffer.size())
+			  + " buffered locations on shutdown", ex);
+		return;
+	    }
+	    batch.clear();
+	}
+    }
+
+    @Override
+	public void run() {
+	ArrayList<DBObject> batch = new ArrayList<DBObject>(_batchSize);
+	try {
+	    while (!Thread.currentThread().isInterrupted()) {
+		batch.add(_buffer.take());
+		_buffer.drainTo(batch, _batchSize - 1);
+		write(batch, true);
+		batch.clear();
+	    }
+	} catch (InterruptedException ex) {
+	    // Put back an unwritten batch for stop() to flush.
+	    for (DBObject doc : batch) {
+		_buffer.offer(doc);
+	    }
+	}
+    }
+
+    /**
+     * Insert batch, falling back to one document at a time if it fails
+     * for any reason other than a transient error.
+     *
+     * @param retry whether to retry transient errors, rather than throw
+     *        them
+     */
+    private void write(List<DBObject> batch, boolean retry) throws InterruptedException {
+	while (true) {
+	    try {
+		_coll.insert(batch);
+		_written.addAndGet(batch.size());
+		return;
+	    } catch (RuntimeException ex) {
+		if (!isTransient(ex)) {
+		    _log.warn("Error writing " + batch.size()
+			      + " locations, writing them one at a time", ex);
+		    break;
+		}
+		if (!retry)
+		    throw ex;
+		_log.warn("Error writing " + batch.size() + " locations, retrying", ex);
+		Thread.sleep(RETRY_DELAY);
+	    }
+	}
+	for (DBObject doc : batch) {
+	    writeOne(doc, retry);
+	}
+    }
+
+    private void writeOne(DBObject doc, boolean retry) throws InterruptedException {
+	while (true) {
+	    try {
+		_coll.insert(doc);
+		_written.incrementAndGet();
+		return;
+	    } catch (MongoException.DuplicateKey ex) {
+		// Written by an earlier attempt.
+		_written.incrementAndGet();
+		return;
+	    } catch (RuntimeException ex) {
+		if (!isTransient(ex)) {
+		    deadLetter(doc, ex);
+		    return;
+		}
+		if (!retry)
+		    throw ex;
+		Thread.sleep(RETRY_DELAY);
+	    }
+	}
+    }
+
+    private void deadLetter(DBObject doc, RuntimeException ex) {
+	_deadLettered.incrementAndGet();
+	String json;
+	try {
+	    json = JSON.serialize(doc);
+	} catch (RuntimeException serializeEx) {
+	    json = String.valueOf(doc);
+	}
+	_deadLetterLog.warn(json + " : " + ex);
+    }
+
+    /**
+     * @return true if ex may not happen again on a later attempt.
+     */
+    private static boolean isTransient(RuntimeException ex) {
+	if (ex instanceof MongoException.Network)
+	    return true;
+	if (!(ex instanceof MongoException) || ex instanceof MongoException.DuplicateKey)
+	    return false;
+	int code = ((MongoException) ex).getCode();
+	for (int notMaster : NOT_MASTER_CODES) {
+	    if (code == notMaster)
+		return true;
+	}
+	// Thrown by the driver when it cannot find the master.
+	String msg = ex.getMessage();
+	return msg != null && msg.contains("master");
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.producer_demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Checks that {@link FeedEncoder} output is byte for byte what
+ * {@link LocationList#buildFeedMessage(List)} serializes to.
+ */
+public class FeedEncoderTest {
+
+    private FeedEncoder _encoder = new FeedEncoder(4);
+
+    @After
+    public void shutdown() {
+	_encoder.shutdown();
+    }
+
+    @Test
+    public void testEmpty() {
+	assertEncodesSame(new ArrayList<Location>());
+    }
+
+    @Test
+    public void testPositions() {
+	List<Location> locs = new ArrayList<Location>();
+	locs.add(new Location("1", 42.3601f, -71.0589f, 90.0f, 5.5f, 1365614681000L));
+	locs.add(new Location("2", -33.8688f, 151.2093f, 359.9f, 0.0f, 1L));
+	locs.add(new Location("", 0.0f, -0.0f, -1.0f, Float.NaN, 0L));
+	assertEncodesSame(locs);
+    }
+
+    @Test
+    public void testMultipleChunks() {
+	List<Location> locs = new ArrayList<Location>();
+	for (int i = 0; i < 2500; i++) {
+	    Location loc = location("bus" + i, i % 3 == 0 ? "trip" + i : null,
+				    i % 5 == 0 ? "route" + (i % 40) : null,
+				    1365614681000L + i * 1000L);
+	    locs.add(i % 7 == 0 ? loc.extrapolatedTo(42.0f, -71.0f, loc.getTimestamp() + 5000) : loc);
+	}
+	assertEncodesSame(locs);
+
+	// The same chunks on the calling thread only.
+	_encoder.shutdown();
+	_encoder = new FeedEncoder(1);
+	assertEncodesSame(locs);
+    }
+
+    @Test
+    public void testNonAsciiIds() {
+	List<Location> locs = new ArrayList<Location>();
+	locs.add(new Location("café", 1.0f, 2.0f, 3.0f, 4.0f, 1000L));
+	locs.add(new Location("日本", 1.0f, 2.0f, 3.0f, 4.0f, 1000L));
+	// A surrogate pair, encoded as four bytes.
+	locs.add(new Location("bus🚌", 1.0f, 2.0f, 3.0f, 4.0f, 1000L));
+	locs.add(location("ü", "tríp", "röute", 1000L));
+
+	// Unpaired surrogates, encoded as '?'.
+	locs.add(new Location("high\ud83d", 1.0f, 2.0f, 3.0f, 4.0f, 1000L));
+	locs.add(new Location("\ude8clow", 1.0f, 2.0f, 3.0f, 4.0f, 1000L));
+	locs.add(new Location("\ude8c\ud83d", 1.0f, 2.0f, 3.0f, 4.0f, 1000L));
+
+	// Long enough for a two-byte length prefix.
+	StringBuilder id = new StringBuilder();
+	for (int i = 0; i < 100; i++) {
+	    id.append("é");
+	}
+	locs.add(new Location(id.toString(), 1.0f, 2.0f, 3.0f, 4.0f, 1000L));
+	assertEncodesSame(locs);
+    }
+
+    @Test
+    public void testTripDescriptors() {
+	List<Location> locs = new ArrayList<Location>();
+	locs.add(location("1", "trip1", "route1", 1000L));
+	locs.add(location("2", "trip2", null, 1000L));
+	locs.add(location("3", null, "route3", 1000L));
+	locs.add(location("4", null, null, 1000L));
+	assertEncodesSame(locs);
+    }
+
+    @Test
+    public void testExtrapolated() {
+	List<Location> locs = new ArrayList<Location>();
+	locs.add(new Location("1", 42.0f, -71.0f, 90.0f, 10.0f, 1000L)
+		 .extrapolatedTo(42.0f, -70.9f, 61000L));
+	locs.add(location("2", "trip2", "route2", 1365614681000L)
+		 .extrapolatedTo(1.0f, 2.0f, 1365614691000L));
+	locs.add(new Location("3", 42.0f, -71.0f, 90.0f, 10.0f, 1000L));
+	assertEncodesSame(locs);
+    }
+
+    @Test
+    public void testGivenHeader() {
+	List<Location> locs = new ArrayList<Location>();
+	locs.add(location("1", "trip1", "route1", 1000L));
+	FeedHeader header = FeedHeader.newBuilder().setGtfsRealtimeVersion("1.0")
+	    .setIncrementality(FeedHeader.Incrementality.FULL_DATASET)
+	    .setTimestamp(1365614681L).build();
+
+	FeedMessage expected = LocationList.buildFeedMessage(locs, header);
+	assertEquals(header, expected.getHeader());
+	assertArrayEquals(expected.toByteArray(), _encoder.encode(locs, header));
+    }
+
+    private void assertEncodesSame(List<Location> locs) {
+	FeedMessage expected = LocationList.buildFeedMessage(locs);
+	byte[] actual = _encoder.encode(locs, expected.getHeader());
+	assertArrayEquals(expected.toByteArray(), actual);
+    }
+
+    /**
+     * @return a location parsed from a document, with an optional trip.
+     */
+    private static Location location(String id, String tripId, String routeId,
+				     long timestamp) {
+	BasicDBObject position = new BasicDBObject("latitude", 42.3601)
+	    .append("longitude", -71.0589).append("bearing", 180.0).append("speed", 7.25);
+	BasicDBObject vehicle = new BasicDBObject("position", position)
+	    .append("timestamp", timestamp);
+	if (tripId != null || routeId != null) {
+	    BasicDBObject trip = new BasicDBObject();
+	    if (tripId != null)
+		trip.append("trip_id", tripId);
+	    if (routeId != null)
+		trip.append("route_id", routeId);
+	    vehicle.append("trip", trip);
+	}
+	BasicDBObject entity = new BasicDBObject("id", id).append("vehicle", vehicle);
+	return new Location(new BasicDBObject("entity", entity));
+    }
+}